@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.ArrayList;
 
 import shared.messages.KVMessage.StatusType;
+import shared.messages.SimpleKVBatch;
 import shared.messages.SimpleKVCommunication;
 
 
@@ -14,7 +15,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Collection;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.TreeMap; // Add import statement for TreeMap
 
 // import java.util.logging.Logger;
@@ -26,6 +31,7 @@ import java.util.logging.Level;
 import java.net.Socket;
 import java.io.*;
 
+import ecs.AckMode;
 import ecs.ConsistentHashing;
 import ecs.ECSNode;
 import java.net.InetSocketAddress;
@@ -35,31 +41,86 @@ import java.security.NoSuchAlgorithmException;
 import java.math.BigInteger;
 
 import ecs.IECSNode;
+import ecs.ECSCommand;
+import ecs.RingDelta;
+import ecs.RingHistory;
+import ecs.VersionedRing;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import shared.messages.KVMessage;
 import shared.messages.SimpleKVMessage;
 
 public class ECSClient implements IECSClient {
     private int ecsPort;
-    private Map<String, IECSNode> nodes = new HashMap<>();  //track the KVServer nodes
-    private Metadata metadata = new Metadata();
+    private Map<String, IECSNode> nodes = new ConcurrentHashMap<>();  //track the KVServer nodes
+    private Metadata metadata;
     private String lowHashRange;
     private String highHashRange;
-    private String nodesMetadata;
+    private static final int METADATA_HISTORY = 16; // ring versions kept to send nodes deltas from
+    private final RingHistory ringHistory = new RingHistory(METADATA_HISTORY);
+    private final Map<String, Long> committedEpochs = new ConcurrentHashMap<>(); // ring version each node runs, by node name
+    private long metadataEpoch = 0; // bumped on every topology change, lets clients spot stale metadata
     // private static final Logger LOGGER = Logger.getLogger(ECSClient.class);
 
 
-    private static final String ECS_SECRET_TOKEN = "secret";
+    private static final int CONTROL_CONNECT_TIMEOUT = 1000; // ms
+    private static final int CONTROL_COMMAND_TIMEOUT = 5000; // ms
+    private static final int MIGRATION_TIMEOUT = 10 * 60 * 1000; // ms, MOVE_RANGE returns once the data is moved
+    private static final int RECORD_BATCH_CHARS = 64 * 1024; // records relayed from a storage handoff per command
+    private static final int DEFAULT_VNODES_PER_NODE = 1;
     private TreeMap<BigInteger, IECSNode> hashRing = new TreeMap<>();
 
+    private Map<String, ECSControlChannel> controlChannels = new ConcurrentHashMap<>(); // one per KVServer, by node name
+
     private Map<String, String[]> nodeNameToHashRange = new HashMap<>();
 
     private static final Logger LOGGER = Logger.getLogger(ECSClient.class);
     // private static final Logger LOGGER = Logger.getLogger(ECSClient.class);
 
 
-    private boolean isRunning;
-    private ServerSocket serverSocket;
+    private volatile boolean isRunning;
+    private volatile ServerSocket serverSocket;
+
+    // Event pipeline: reader threads parse incoming connections, one topology thread applies the events in order.
+    // The executors are created by startListening, so the ECS can listen again after stopListening.
+    private volatile ExecutorService eventReaders;
+    private volatile ScheduledExecutorService topology;
+    private static final long EVENT_COALESCE_WINDOW = 200; // ms, events arriving together are applied as one change
+    private static final int EVENT_READ_TIMEOUT = 10000; // ms, a connection that stays silent gives up its place in line
+    private final List<String> pendingEvents = new ArrayList<>(); // guarded by itself
+    private boolean flushScheduled; // guarded by pendingEvents
+    // Each connection is numbered when accepted and its event queued only after those of earlier connections,
+    // so e.g. a server's ALIVE is always applied before its later STORAGE_HANDOFF
+    private long nextAccepted; // accept thread only
+    private long nextQueued; // guarded by pendingEvents
+    private final Map<Long, String> readOutOfOrder = new HashMap<>(); // guarded by pendingEvents, null if nothing was read
+
+    // Failure detection: nodes that stop answering pings are removed like nodes that leave
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 500; // ms
+    private static final double DEFAULT_PHI_THRESHOLD = 8.0;
+    private volatile ScheduledExecutorService heartbeats;
+    private volatile ExecutorService heartbeatConnects; // opens channels to nodes off the heartbeat thread
+    private final Set<String> connectingNodes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final long heartbeatInterval;
+    private final FailureDetector failureDetector;
+    private final Set<String> suspectedNodes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Copies of each key kept on the servers following its owner on the ring
+    private static final int DEFAULT_REPLICATION_FACTOR = 3;
+    private static final AckMode DEFAULT_ACK_MODE = AckMode.QUORUM;
+    private volatile int replicationFactor = DEFAULT_REPLICATION_FACTOR;
+    private volatile AckMode ackMode = DEFAULT_ACK_MODE;
 
 
     public String[] getHashRangeForNode(String nodeName) {
@@ -79,6 +140,13 @@ public class ECSClient implements IECSClient {
     public IECSNode getNodeByName(String nodeName) {
         return nodes.get(nodeName);
     }
+
+    /**
+     * @return ring version the node last committed, null if unknown
+     */
+    public Long getCommittedEpoch(String nodeName) {
+        return committedEpochs.get(nodeName);
+    }
     
 
     private String getServerHash(String ip, int port) {
@@ -86,7 +154,40 @@ public class ECSClient implements IECSClient {
     }
 
     public ECSClient(int ecsPort){
+        this(ecsPort, DEFAULT_VNODES_PER_NODE);
+    }
+
+    /**
+     * @param vnodesPerNode tokens each KVServer places on the hash ring; more
+     *        tokens even out range sizes and spread migrations over all peers
+     */
+    public ECSClient(int ecsPort, int vnodesPerNode){
+        this(ecsPort, vnodesPerNode, DEFAULT_HEARTBEAT_INTERVAL, DEFAULT_PHI_THRESHOLD);
+    }
+
+    /**
+     * @param heartbeatInterval ms between pings to each KVServer
+     * @param phiThreshold suspicion level at which a silent KVServer is removed from the ring;
+     *        detection takes about phiThreshold * 2.3 heartbeat intervals
+     */
+    public ECSClient(int ecsPort, int vnodesPerNode, long heartbeatInterval, double phiThreshold){
         this.ecsPort = ecsPort; 
+        this.metadata = new Metadata(vnodesPerNode);
+        this.heartbeatInterval = heartbeatInterval;
+        this.failureDetector = new FailureDetector(heartbeatInterval, phiThreshold);
+    }
+
+    /**
+     * Takes effect with the next configuration sent to the KVServers.
+     * @param replicationFactor servers holding each key, its owner included; 1 disables replication
+     * @param ackMode copies written before a client write is acknowledged
+     */
+    public void setReplication(int replicationFactor, AckMode ackMode) {
+        if (replicationFactor < 1) {
+            throw new IllegalArgumentException("Replication factor must be at least 1");
+        }
+        this.replicationFactor = replicationFactor;
+        this.ackMode = ackMode;
     }
 
     // public void startListening() {
@@ -171,148 +272,289 @@ public class ECSClient implements IECSClient {
     //     }
     // }
     
+    /**
+     * Accepts connections from KVServers. The accept thread only hands each
+     * connection to a reader thread; the events read from them (ALIVE,
+     * STORAGE_HANDOFF, ...) are applied one at a time, in the order their
+     * connections were accepted, on the topology thread, so a burst of joins
+     * never blocks accepting.
+     */
     public void startListening() {
         isRunning = true;
+        synchronized (pendingEvents) {
+            pendingEvents.clear();
+            readOutOfOrder.clear();
+            flushScheduled = false;
+            nextQueued = 0;
+        }
+        nextAccepted = 0;
+        eventReaders = Executors.newCachedThreadPool(daemonThreads("ecs-event-reader"));
+        topology = Executors.newSingleThreadScheduledExecutor(daemonThreads("ecs-topology"));
+        heartbeats = Executors.newSingleThreadScheduledExecutor(daemonThreads("ecs-heartbeat"));
+        heartbeatConnects = Executors.newCachedThreadPool(daemonThreads("ecs-heartbeat-connect"));
+        heartbeats.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkHeartbeats();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error sending heartbeats", e);
+                }
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
         try (ServerSocket serverSocket = new ServerSocket(ecsPort)) {
+            this.serverSocket = serverSocket;
             LOGGER.info("ECSClient listening on port " + ecsPort);
 
             while (isRunning) { // Continuously accept new connections
-                Socket clientSocket = null;
-                BufferedReader in = null;
                 try {
-                    clientSocket = serverSocket.accept();
-                    in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream())); 
-                    String inputLine = in.readLine();
-                    System.out.println("ECSClient:" + inputLine);
-                    // New Server became available, adding it 
-                    if (inputLine != null && inputLine.startsWith("ALIVE")) {
-                        String[] parts = inputLine.split(" ", 3); // Split into at most 3 parts
-                        String[] nodeNames = new String[1];
-                        nodeNames[0] = parts[1];
-
-                        System.out.println("SERVER SENT ALIVE MSG, Adding node... " + parts[1]);
-                        setWriteLockAllNodes(true);
-                        Collection<IECSNode> addedNodes = addNodes(1, "FIFO", 1024, nodeNames);
-                        setWriteLockAllNodes(false);
-                        System.out.println("Added nodes: " + addedNodes.size());
-                    }
-
-                    // Recieved Data from Server - needed to rebalance (migrate) data
-                    if (inputLine != null && inputLine.startsWith("ECS_STORAGE_HANDOFF")) {
-                        String[] parts = inputLine.split(" ", 3); // Split into at most 3 parts
-
-                        // if less than 3, there was no data to be handed over 
-
-                        if (parts.length == 3){
-                            System.out.println("ECSClient, Added node - handling data redistribution");
-                            System.out.println("Received:" + inputLine);
-                            String server = inputLine.split(" ")[1]; 
-                            setWriteLockAllNodes(true);
-                            processStorageHandoff(server, inputLine.split(" ")[2]);
-                            setWriteLockAllNodes(false);
+                    final Socket clientSocket = serverSocket.accept();
+                    final long sequence = nextAccepted++;
+                    eventReaders.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            readEvent(clientSocket, sequence);
                         }
-                    }
-                    
-                    // Dead Server has let know its dying, taking over the storage
-                    if (inputLine != null && inputLine.startsWith("STORAGE_HANDOFF")) {
-                        System.out.println("ECSClient, DeadServer");
-                        String[] parts = inputLine.split(" ", 3); // Split into at most 3 parts
-                    
-                        // Even if there's no data to hand off (parts.length < 3), proceed to remove the node.
-                        String dead_server = parts[1];
-                        setWriteLockAllNodes(true);
-
-                        Collection<String> nodeNamesToRemove = new ArrayList<>();
-                        nodeNamesToRemove.add(dead_server); // Add the dead server to the collection
-                        boolean removeSuccess = removeNodes(nodeNamesToRemove); // Call the removeNodes method
-                    
-                        if (removeSuccess) {
-                            System.out.println("Node removed successfully: " + dead_server);
-                            // Process storage handoff if there's data
-                            if (parts.length == 3) {
-                                processStorageHandoff(dead_server, parts[2]);
-                            }
-                        } else {
-                            System.out.println("Failed to remove node: " + dead_server);
-                        }
-
-                        setWriteLockAllNodes(false);
-                    
-                        // After processing, check if there are no nodes left
-                        if (nodes.isEmpty()) {
-                            safelyShutdownECSClient();
-                        } else {
-                            System.out.println("There are still alive nodes. ECS will not shutdown.");
-                        }
-                    }
-                    
-                    // if (inputLine != null && inputLine.startsWith("STORAGE_HANDOFF")) {
-                    //     System.out.println("ECSClient, DeadServer");
-                    //     String[] parts = inputLine.split(" ", 3); // Split into at most 3 parts
-
-                    //     if (parts.length == 3) {
-                    //         String dead_server = parts[1];
-                    //         Collection<String> nodeNamesToRemove = new ArrayList<>();
-                    //         nodeNamesToRemove.add(dead_server); // Add the dead server to the collection
-                    //         boolean removeSuccess = removeNodes(nodeNamesToRemove); // Call the removeNodes method
-                    //         if (removeSuccess) {
-                    //             System.out.println("Node removed successfully: " + dead_server);
-                    //             processStorageHandoff(dead_server, parts[2]);
-                                
-                    //         } else {
-                    //             System.out.println("Failed to remove node: " + dead_server);
-                    //         }    
-                    //     }
-                        
-                    //     if (nodes.isEmpty()) {
-                    //         System.out.println("No nodes are alive. Proceeding to stop services and shutdown ECS.");
-                        
-                    //         // Shutdown ECS
-                    //         boolean stopSuccess = stop();           
-                    //         boolean shutdownSuccess = shutdown();
-                    //         System.out.println("ECS shut down: " + shutdownSuccess);
-                    //         System.exit(0); 
-                    //     } else {
-                    //         System.out.println("There are still alive nodes. ECS will not shutdown.");
-                    //     }
-                    // }
-                    
-                    
+                    });
                 } catch (IOException e) {
-                    // LOGGER.log(Level.SEVERE, "Error processing connection", e);
-                    LOGGER.error("Error processing connection", e);
-                } finally {
-                    if (in != null) {
-                        try {
-                            in.close();
-                        } catch (IOException e) {
-                            // LOGGER.log(Level.SEVERE, "Error closing BufferedReader", e);
-                            LOGGER.error("Error closing BufferedReader", e);
-
-                        }
-                    }
-                    if (clientSocket != null && !clientSocket.isClosed()) {
-                        try {
-                            clientSocket.close();
-                        } catch (IOException e) {
-                            // LOGGER.log(Level.SEVERE, "Error closing Socket", e);
-                            LOGGER.error("Error closing Socket", e);
-                        }
+                    if (serverSocket.isClosed()) {
+                        break; // closed by stopListening or close
                     }
+                    LOGGER.error("Error accepting connection", e);
                 }
             }
         } catch (IOException e) {
             // LOGGER.log(Level.SEVERE, "Could not listen on port " + ecsPort, e);
             LOGGER.error("Could not listen on port ", e);
+        }
+    }
+
+    /* Reads the single event line a KVServer sends and queues it for the topology thread */
+    private void readEvent(Socket clientSocket, long sequence) {
+        BufferedReader in = null;
+        String inputLine = null;
+        try {
+            clientSocket.setSoTimeout(EVENT_READ_TIMEOUT);
+            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream())); 
+            inputLine = in.readLine();
+            System.out.println("ECSClient:" + inputLine);
+        } catch (IOException e) {
+            // LOGGER.log(Level.SEVERE, "Error processing connection", e);
+            LOGGER.error("Error processing connection", e);
         } finally {
-            if (serverSocket != null && !serverSocket.isClosed()) {
+            queueEvent(sequence, inputLine);
+            if (in != null) {
                 try {
-                    serverSocket.close();
+                    in.close();
                 } catch (IOException e) {
-                    // LOGGER.log(Level.SEVERE, "Error closing the server socket", e);
-                    LOGGER.error("Error closing the server socket", e);
+                    // LOGGER.log(Level.SEVERE, "Error closing BufferedReader", e);
+                    LOGGER.error("Error closing BufferedReader", e);
                 }
             }
+            if (!clientSocket.isClosed()) {
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    // LOGGER.log(Level.SEVERE, "Error closing Socket", e);
+                    LOGGER.error("Error closing Socket", e);
+                }
+            }
+        }
+    }
+
+    /* Pings every node and reports the ones whose silence has become too unlikely as failed */
+    private void checkHeartbeats() {
+        long now = System.currentTimeMillis();
+        for (IECSNode node : nodes.values()) {
+            final String nodeName = node.getNodeName();
+            if (!(node instanceof ECSNode) || ((ECSNode) node).getAdminPort() <= 0) {
+                continue; // no control channel to ping over
+            }
+            if (failureDetector.isSuspected(nodeName, now)) {
+                if (suspectedNodes.add(nodeName)) {
+                    LOGGER.warn("No heartbeat from " + nodeName + " (phi " + String.format("%.1f", failureDetector.phi(nodeName, now)) + "), removing it");
+                    queueEvent("FAILED " + nodeName);
+                }
+                continue;
+            }
+            ECSControlChannel channel = controlChannels.get(nodeName);
+            if (channel != null && channel.isOpen()) {
+                ping(channel, nodeName);
+            } else {
+                connectAndPing(node);
+            }
+        }
+    }
+
+    /* Connecting may take the whole connect timeout, so it is done off the heartbeat thread, once per node at a time */
+    private void connectAndPing(final IECSNode node) {
+        final String nodeName = node.getNodeName();
+        if (!connectingNodes.add(nodeName)) {
+            return;
+        }
+        heartbeatConnects.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ECSControlChannel channel = channelFor(node);
+                    if (nodes.containsKey(nodeName)) {
+                        ping(channel, nodeName);
+                    } else {
+                        closeControlChannel(nodeName); // removed while connecting
+                    }
+                } catch (IOException e) {
+                    // Unreachable, its silence grows until it is suspected
+                } finally {
+                    connectingNodes.remove(nodeName);
+                }
+            }
+        });
+    }
+
+    private void ping(ECSControlChannel channel, final String nodeName) {
+        channel.send(ECSCommand.PING, null).whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String reply, Throwable error) {
+                if (error == null) {
+                    failureDetector.heartbeat(nodeName, System.currentTimeMillis());
+                }
+            }
+        });
+    }
+
+    /* Queues the event read from the given connection once the events of all earlier connections are queued */
+    private void queueEvent(long sequence, String inputLine) {
+        synchronized (pendingEvents) {
+            readOutOfOrder.put(sequence, inputLine);
+            boolean queued = false;
+            while (readOutOfOrder.containsKey(nextQueued)) {
+                String next = readOutOfOrder.remove(nextQueued++);
+                if (next != null) {
+                    pendingEvents.add(next);
+                    queued = true;
+                }
+            }
+            if (!queued || flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        scheduleFlush();
+    }
+
+    /* Events are collected for a short window so a fleet start or mass failure becomes one ring change */
+    private void queueEvent(String inputLine) {
+        synchronized (pendingEvents) {
+            pendingEvents.add(inputLine);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        ScheduledExecutorService topology = this.topology;
+        if (topology == null || topology.isShutdown()) {
+            return; // stopped listening, queued events are dropped
+        }
+        topology.schedule(new Runnable() {
+            @Override
+            public void run() {
+                List<String> events;
+                synchronized (pendingEvents) {
+                    events = new ArrayList<>(pendingEvents);
+                    pendingEvents.clear();
+                    flushScheduled = false;
+                }
+                try {
+                    processEvents(events);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error processing events: " + events, e);
+                }
+            }
+        }, EVENT_COALESCE_WINDOW, TimeUnit.MILLISECONDS);
+    }
+
+    /* Runs on the topology thread only */
+    private void processEvents(List<String> events) {
+        List<ECSNode> joining = new ArrayList<>();
+        Set<String> leaving = new LinkedHashSet<>();
+        Map<String, String> handedOff = new HashMap<>();
+        for (String inputLine : events) {
+            // New Server became available, adding it 
+            if (inputLine.startsWith("ALIVE")) {
+                // ALIVE <host:port> <adminPort> [weight]
+                String[] parts = inputLine.split(" ", 4); // Split into at most 4 parts
+                System.out.println("SERVER SENT ALIVE MSG, Adding node... " + parts[1]);
+                leaving.remove(parts[1]); // restarted before we got to it
+                joining.add(newNode(parts[1], "FIFO", 1024,
+                    parseAdminPort(parts.length > 2 ? parts[2] : null), parseWeight(parts.length > 3 ? parts[3] : null)));
+            }
+
+            // Server stopped answering heartbeats, its data is gone with it
+            if (inputLine.startsWith("FAILED")) {
+                leaving.add(inputLine.split(" ")[1]);
+            }
+
+            // Dead Server has let know its dying, taking over the storage
+            if (inputLine.startsWith("STORAGE_HANDOFF")) {
+                System.out.println("ECSClient, DeadServer");
+                String[] parts = inputLine.split(" ", 3); // Split into at most 3 parts
+                // Even if there's no data to hand off (parts.length < 3), proceed to remove the node.
+                leaving.add(parts[1]);
+                if (parts.length == 3) {
+                    handedOff.put(parts[1], parts[2]);
+                }
+            }
+        }
+
+        if (!joining.isEmpty() || !leaving.isEmpty()) {
+            changeTopology(joining, leaving, handedOff);
+            System.out.println("Added nodes: " + joining.size() + ", removed nodes: " + leaving);
+            if (!leaving.isEmpty()) {
+                // After processing, check if there are no nodes left
+                if (nodes.isEmpty()) {
+                    safelyShutdownECSClient();
+                } else {
+                    System.out.println("There are still alive nodes. ECS will not shutdown.");
+                }
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static int parseAdminPort(String adminPort) {
+        try {
+            return Integer.parseInt(adminPort);
+        } catch (NumberFormatException e) {
+            LOGGER.error("Node did not announce a valid admin port: " + adminPort);
+            return -1;
+        }
+    }
+
+    /* Nodes that predate weights announce none and get an equal share */
+    private static int parseWeight(String weight) {
+        if (weight == null) {
+            return 1;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(weight.trim()));
+        } catch (NumberFormatException e) {
+            LOGGER.error("Node did not announce a valid weight: " + weight);
+            return 1;
         }
     }
 
@@ -357,7 +599,19 @@ public class ECSClient implements IECSClient {
     
     public void stopListening() {
         isRunning = false;
-        // No need to close the serverSocket here since it's handled in the finally block of startListening method
+        // Unblocks accept; queued events are dropped
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error closing the server socket", e);
+        }
+        for (ExecutorService executor : new ExecutorService[]{eventReaders, topology, heartbeats, heartbeatConnects}) {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
     }
 
 
@@ -382,93 +636,437 @@ public class ECSClient implements IECSClient {
     }
 
 
-    private void fetchServerData(IECSNode node) {
-        String serializedData = ""; // Initialize an empty string to hold the serialized data
-        try (Socket socket = new Socket(node.getNodeHost(), node.getNodePort());
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+    private ECSNode newNode(String nodeName, String cacheStrategy, int cacheSize, int adminPort, int weight) {
+        String nodeHost = "localhost"; 
+        String[] parts = nodeName.split(":",2);
+        int nodePort = Integer.parseInt(parts[1]);
+        ECSNode node = new ECSNode(nodeName, nodeHost, nodePort, cacheStrategy, cacheSize, lowHashRange, highHashRange);
+        node.setAdminPort(adminPort);
+        node.setWeight(weight);
+        return node;
+    }
+
+    /**
+     * Applies joins and leaves as one ring change: the ring is rebalanced
+     * once, each range that changes owner is moved once, straight to its
+     * final owner, and the configuration goes out once.
+     * @param handedOff serialized storage of leaving nodes, by node name
+     */
+    private synchronized void changeTopology(List<ECSNode> joining, Collection<String> leaving, Map<String, String> handedOff) {
+        List<ECSNode> added = new ArrayList<>();
+        for (ECSNode node : joining) {
+            if (nodes.containsKey(node.getNodeName()) || leaving.contains(node.getNodeName())) {
+                System.out.println("Already part of the Server List: " + node.getNodeName());
+            } else {
+                added.add(node);
+            }
+        }
+        List<ECSNode> removed = new ArrayList<>();
+        for (String nodeName : leaving) {
+            IECSNode node = nodes.get(nodeName);
+            if (node instanceof ECSNode) {
+                removed.add((ECSNode) node);
+            }
+        }
+        System.out.println("Changing topology, joining: " + added.size() + ", leaving: " + removed.size());
+
+        setWriteLock(added, true); // New nodes take no writes until they own their ranges
+
+        TreeMap<String, ECSNode> before = metadata.snapshot();
+        metadata.changeNodes(added, removed); // Delegates to Metadata to handle hash and rebalance
+        long now = System.currentTimeMillis();
+        for (ECSNode node : added) {
+            nodes.put(node.getNodeName(), node); // Keep track of nodes
+            failureDetector.heartbeat(node.getNodeName(), now); // watched from now on
+        }
+        for (ECSNode node : removed) {
+            nodes.remove(node.getNodeName());
+            closeControlChannel(node.getNodeName());
+            committedEpochs.remove(node.getNodeName());
+            failureDetector.remove(node.getNodeName());
+            suspectedNodes.remove(node.getNodeName());
+        }
 
-            // Send a command to the server asking for its data
-            out.println(ECS_SECRET_TOKEN + " ECS_REQUEST_STORAGE_HANDOFF");
+        // Ranges of leaving nodes stay write locked on their heirs until the handed off data is in,
+        // ranges of remaining nodes are streamed to their new owners while still writable
+        List<PendingMove> done = new ArrayList<>();
+        Map<ECSNode, List<String[]>> inherited;
+        Map<ECSNode, Map<ECSNode, List<String[]>>> moves;
+        while (true) {
+            inherited = new HashMap<>();
+            moves = new HashMap<>();
+            for (Metadata.Transfer transfer : Metadata.transfersBetween(before, metadata.getHashRing())) {
+                if (removed.contains(transfer.getFrom())) {
+                    addRange(inherited, transfer.getTo(), transfer.getHashRange());
+                } else {
+                    Map<ECSNode, List<String[]>> bySource = moves.get(transfer.getTo());
+                    if (bySource == null) {
+                        bySource = new HashMap<>();
+                        moves.put(transfer.getTo(), bySource);
+                    }
+                    addRange(bySource, transfer.getFrom(), transfer.getHashRange());
+                }
+            }
+            lockRanges(inherited, true);
+            abortAbandonedMoves(moves, done);
+            Set<ECSNode> unfilled = moveRanges(moves, done);
+            if (unfilled.isEmpty()) {
+                break;
+            }
+            // Ranges only go to owners that hold their data: nodes that could not be filled stay out of the ring,
+            // and the plan is redone without them, so their ranges stay with (or go back to) nodes that have the data
+            lockRanges(inherited, false);
+            for (ECSNode node : unfilled) {
+                LOGGER.error("Not all ranges could be moved to " + node.getNodeName() + ", it does not join the ring");
+                added.remove(node);
+                nodes.remove(node.getNodeName());
+                closeControlChannel(node.getNodeName());
+                failureDetector.remove(node.getNodeName());
+            }
+            metadata.changeNodes(Collections.<ECSNode>emptyList(), unfilled);
+        }
+        // Only the moves of the final plan are dropped on their sources, all of them went through
+        Map<ECSNode, List<String[]>> movedRanges = new HashMap<>();
+        for (Map<ECSNode, List<String[]>> bySource : moves.values()) {
+            for (Map.Entry<ECSNode, List<String[]>> source : bySource.entrySet()) {
+                for (String[] hashRange : source.getValue()) {
+                    addRange(movedRanges, source.getKey(), hashRange);
+                }
+            }
+        }
 
+        updateAllNodesConfiguration(); // Update and send configuration to all nodes to ensure consistency
+        setWriteLock(added, false);
 
-        } catch (IOException e) {
-            //LOGGER.log(Level.SEVERE, "Error fetching server data from node: " + node.getNodeName(), e);
-            LOGGER.error("Error fetching server data from node", e);
+        // Ownership has switched, the previous owners stop forwarding and forget the moved data
+        dropMovedRanges(movedRanges);
+
+        for (Map.Entry<String, String> handoff : handedOff.entrySet()) {
+            processStorageHandoff(handoff.getKey(), handoff.getValue());
         }
+        lockRanges(inherited, false);
+    }
+
+    private static void addRange(Map<ECSNode, List<String[]>> byNode, ECSNode node, String[] hashRange) {
+        List<String[]> nodeRanges = byNode.get(node);
+        if (nodeRanges == null) {
+            nodeRanges = new ArrayList<>();
+            byNode.put(node, nodeRanges);
+        }
+        nodeRanges.add(hashRange);
+    }
+
+    /* "low high low high ..." as taken by SET_CONFIG, MOVE_RANGE, DROP_RANGE and LOCK_RANGES */
+    private static String formatRanges(List<String[]> hashRanges) {
+        StringBuilder args = new StringBuilder();
+        for (String[] hashRange : hashRanges) {
+            if (args.length() > 0) {
+                args.append(' ');
+            }
+            args.append(hashRange[0]).append(' ').append(hashRange[1]);
+        }
+        return args.toString();
+    }
+
+    /* Write locks (or unlocks) just the given ranges on each node */
+    private void lockRanges(Map<ECSNode, List<String[]>> rangesByNode, boolean lock) {
+        Map<IECSNode, String> args = new HashMap<>();
+        for (Map.Entry<ECSNode, List<String[]>> node : rangesByNode.entrySet()) {
+            args.put(node.getKey(), lock ? formatRanges(node.getValue()) : null);
+        }
+        sendCommandToAll(ECSCommand.LOCK_RANGES, args, CONTROL_COMMAND_TIMEOUT);
+    }
 
+    /**
+     * Asks the previous owners to stream ranges to their new owners over the
+     * bulk transfer channel between the servers. All sources stream at once;
+     * a source that hands ranges to several new owners serves them in turn.
+     * A move that fails is retried once, on a new snapshot of the ranges.
+     * @param moves ranges by new owner, then by previous owner
+     * @param done moves that succeeded so far, skipped if planned again; the ones that succeed now are added
+     * @return the new owners that did not receive all of their ranges
+     */
+    private Set<ECSNode> moveRanges(Map<ECSNode, Map<ECSNode, List<String[]>>> moves, List<PendingMove> done) {
+        Set<ECSNode> unfilled = new HashSet<>();
+        List<PendingMove> pending = new ArrayList<>();
+        for (Map.Entry<ECSNode, Map<ECSNode, List<String[]>>> move : moves.entrySet()) {
+            ECSNode target = move.getKey();
+            if (target.getAdminPort() <= 0) {
+                LOGGER.error("Admin port of " + target.getNodeName() + " is unknown, no data can be moved to it");
+                unfilled.add(target);
+                continue;
+            }
+            for (Map.Entry<ECSNode, List<String[]>> source : move.getValue().entrySet()) {
+                PendingMove planned = new PendingMove(source.getKey(), target, source.getValue());
+                if (!done.contains(planned)) {
+                    pending.add(planned);
+                }
+            }
+        }
+        long deadline = System.currentTimeMillis() + MIGRATION_TIMEOUT;
+        for (int attempt = 0; attempt < 2 && !pending.isEmpty(); attempt++) {
+            for (PendingMove move : pending) {
+                move.reply = sendCommandAsync(move.source, ECSCommand.MOVE_RANGE, move.args);
+            }
+            List<PendingMove> failed = new ArrayList<>();
+            for (PendingMove move : pending) {
+                String records = awaitReply(move.reply, ECSCommand.MOVE_RANGE, move.source.getNodeName(), deadline);
+                if (records != null) {
+                    LOGGER.info(move.source.getNodeName() + " moved " + records + " records to " + move.target.getNodeName());
+                    done.add(move);
+                } else {
+                    failed.add(move);
+                }
+            }
+            pending = failed;
+        }
+        for (PendingMove move : pending) {
+            unfilled.add(move.target);
+        }
+        return unfilled;
+    }
+
+    /* Moves that went through under an earlier plan but are not part of this one stop forwarding to their
+     * targets, which may have been left out of the ring; their sources keep the records */
+    private void abortAbandonedMoves(Map<ECSNode, Map<ECSNode, List<String[]>>> moves, List<PendingMove> done) {
+        Set<PendingMove> planned = new HashSet<>();
+        for (Map.Entry<ECSNode, Map<ECSNode, List<String[]>>> move : moves.entrySet()) {
+            for (Map.Entry<ECSNode, List<String[]>> source : move.getValue().entrySet()) {
+                planned.add(new PendingMove(source.getKey(), move.getKey(), source.getValue()));
+            }
+        }
+        Map<ECSNode, List<String[]>> abandoned = new HashMap<>();
+        for (Iterator<PendingMove> it = done.iterator(); it.hasNext(); ) {
+            PendingMove move = it.next();
+            if (!planned.contains(move)) {
+                for (String[] hashRange : move.hashRanges) {
+                    addRange(abandoned, move.source, hashRange);
+                }
+                it.remove();
+            }
+        }
+        if (abandoned.isEmpty()) {
+            return;
+        }
+        Map<IECSNode, String> args = new HashMap<>();
+        for (Map.Entry<ECSNode, List<String[]>> source : abandoned.entrySet()) {
+            args.put(source.getKey(), formatRanges(source.getValue()));
+        }
+        sendCommandToAll(ECSCommand.ABORT_MOVE, args, CONTROL_COMMAND_TIMEOUT);
+    }
+
+    private static class PendingMove {
+        final ECSNode source;
+        final ECSNode target;
+        final List<String[]> hashRanges;
+        final String args; // MOVE_RANGE arguments, the same move is planned with the same ones
+        CompletableFuture<String> reply;
+
+        PendingMove(ECSNode source, ECSNode target, List<String[]> hashRanges) {
+            this.source = source;
+            this.target = target;
+            this.hashRanges = hashRanges;
+            this.args = target.getNodeHost() + " " + target.getAdminPort() + " " + formatRanges(hashRanges);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof PendingMove && ((PendingMove) other).source == source
+                && ((PendingMove) other).args.equals(args);
+        }
+
+        @Override
+        public int hashCode() {
+            return args.hashCode();
+        }
+    }
+
+    private void dropMovedRanges(Map<ECSNode, List<String[]>> movedRanges) {
+        Map<IECSNode, String> args = new HashMap<>();
+        for (Map.Entry<ECSNode, List<String[]>> source : movedRanges.entrySet()) {
+            args.put(source.getKey(), formatRanges(source.getValue()));
+        }
+        sendCommandToAll(ECSCommand.DROP_RANGE, args, CONTROL_COMMAND_TIMEOUT);
     }
 
     private void redistributeData(String oldServer, Map<String, String> dataToRedistribute) {
         System.out.println("ECSClient, OLDSERVER!!! : " + getNodeByName(oldServer));
-        if (getNodeByName(oldServer) == null){ // DeadServer 
-            if (!dataToRedistribute.isEmpty()){
-                for (Map.Entry<String, String> entry : dataToRedistribute.entrySet()) {
-                    String key = entry.getKey();
-                    String value = entry.getValue();
-            
-                    String keyHash = ConsistentHashing.getKeyHash(key);
-                    IECSNode targetNode = findNodeForKey(keyHash);
-            
-                    if (targetNode != null) {
-                        sendToServer(StatusType.PUT, key, value, targetNode);
-                    } else {
-                        //LOGGER.log(Level.SEVERE, "No target node found for key: " + key);
-                        LOGGER.error("No target node found for key");
-                    }
+        IECSNode old = getNodeByName(oldServer);
+        // One PUT_KV_BATCH per node instead of a command per key, each server rewrites its storage once per batch
+        Map<IECSNode, List<String[]>> recordsByNode = new HashMap<>();
+        List<String[]> removals = new ArrayList<>();
+        for (Map.Entry<String, String> entry : dataToRedistribute.entrySet()) {
+            String keyHash = ConsistentHashing.getKeyHash(entry.getKey());
+            IECSNode targetNode = findNodeForKey(keyHash);
+
+            if (old != null) { // Redistribute, remove from old
+                removals.add(new String[]{entry.getKey(), null});
+            }
+            if (targetNode != null) {
+                List<String[]> records = recordsByNode.get(targetNode);
+                if (records == null) {
+                    records = new ArrayList<>();
+                    recordsByNode.put(targetNode, records);
                 }
+                records.add(new String[]{entry.getKey(), entry.getValue()});
+            } else {
+                //LOGGER.log(Level.SEVERE, "No target node found for key: " + key);
+                LOGGER.error("No target node found for key");
             }
         }
+        List<CompletableFuture<String>> pendingMoves = new ArrayList<>();
+        if (!removals.isEmpty()) {
+            pendingMoves.addAll(sendRecords(old, removals));
+        }
+        for (Map.Entry<IECSNode, List<String[]>> records : recordsByNode.entrySet()) {
+            pendingMoves.addAll(sendRecords(records.getKey(), records.getValue()));
+        }
+        awaitAll(pendingMoves);
+    }
 
-        else{ // Redistribute 
-            for (Map.Entry<String, String> entry : dataToRedistribute.entrySet()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-        
-                String keyHash = ConsistentHashing.getKeyHash(key);
-                IECSNode targetNode = findNodeForKey(keyHash);
-    
-                sendToServer(StatusType.PUT, key, null, getNodeByName(oldServer)); // remove from old
-    
-                if (targetNode != null) {
-                    sendToServer(StatusType.PUT, key, value, targetNode);
-                } else {
-                    //LOGGER.log(Level.SEVERE, "No target node found for key: " + key);
-                    LOGGER.error("No target node found for key");
-                }
+    /* Waits for pipelined control commands, logging the ones that failed */
+    private void awaitAll(List<CompletableFuture<String>> replies) {
+        for (CompletableFuture<String> reply : replies) {
+            try {
+                reply.get(CONTROL_COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                LOGGER.error("Control command failed", e);
             }
         }
-        
     }
     
 
     
     private IECSNode findNodeForKey(String keyHash) {
-        // Logic to find the correct node for a given key hash based on the hash ring
-        for (IECSNode node : nodes.values()) {
-            if (ConsistentHashing.isKeyInRange(keyHash, node.getNodeHashRange())) {
-                return node;
-            }
-        }
-        return null; // This case should not occur if the hash ring is correctly maintained
+        // The ring knows every token, so this also covers nodes with several ranges
+        return metadata.getNodeForKey(keyHash);
     }
 
     
     
     
 
-    private void sendToServer(StatusType command, String key, String value, IECSNode node) {
-        try (Socket socket = new Socket(node.getNodeHost(), node.getNodePort());
-             OutputStream outputStream = socket.getOutputStream()) {
-            // Create the message
-            SimpleKVMessage messageToSend = new SimpleKVMessage(command, key, value);
-            
-            // Serialize and send the message
-            SimpleKVCommunication.sendMessage(messageToSend, outputStream, LOGGER);
-        
-            System.out.println("SendToServer Called: " + command + ", " + key + ", " + value);
+    /**
+     * Sends records, a null value deleting the key, as PUT_KV_BATCH commands
+     * of at most RECORD_BATCH_CHARS each.
+     * @return the pending acknowledgement of each command
+     */
+    private List<CompletableFuture<String>> sendRecords(IECSNode node, List<String[]> records) {
+        System.out.println("Sending " + records.size() + " records to " + node.getNodeName());
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        StringBuilder fields = new StringBuilder();
+        for (int i = 0; i < records.size(); i++) {
+            SimpleKVBatch.appendField(fields, records.get(i)[0]);
+            SimpleKVBatch.appendField(fields, records.get(i)[1]);
+            if (fields.length() >= RECORD_BATCH_CHARS || i == records.size() - 1) {
+                try {
+                    // Sent over the control channel: acknowledged, and not subject to the write lock
+                    replies.add(channelFor(node).send(ECSCommand.PUT_KV_BATCH, fields.toString()));
+                } catch (IOException e) {
+                    LOGGER.error("Error sending data to node " + node.getNodeName(), e);
+                    CompletableFuture<String> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    replies.add(failed);
+                }
+                fields.setLength(0);
+            }
+        }
+        return replies;
+    }
+
+    /* Returns the open control channel to the node, connecting it on first use */
+    private ECSControlChannel channelFor(IECSNode node) throws IOException {
+        synchronized (controlChannels) {
+            ECSControlChannel channel = controlChannels.get(node.getNodeName());
+            if (channel == null || !channel.isOpen()) {
+                int adminPort = node instanceof ECSNode ? ((ECSNode) node).getAdminPort() : -1;
+                if (adminPort <= 0) {
+                    throw new IOException("Admin port of " + node.getNodeName() + " is unknown");
+                }
+                channel = new ECSControlChannel(node.getNodeName(), node.getNodeHost(), adminPort, CONTROL_CONNECT_TIMEOUT);
+                controlChannels.put(node.getNodeName(), channel);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Sends a command over the node's control channel and waits for the acknowledgement.
+     * @return the reply payload, or null if the command failed
+     */
+    private String sendCommand(IECSNode node, ECSCommand command, String args) {
+        return sendCommand(node, command, args, CONTROL_COMMAND_TIMEOUT);
+    }
+
+    private String sendCommand(IECSNode node, ECSCommand command, String args, long timeoutMs) {
+        System.out.println("Sending command to KVServer: " + command + " to " + node.getNodeName());
+        try {
+            String reply = channelFor(node).call(command, args, timeoutMs);
+            System.out.println(command + " acknowledged by: " + node.getNodeName());
+            return reply;
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println("Error sending " + command + " to node " + node.getNodeName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Sends a command to several nodes at once and waits for all of them
+     * against a single deadline, so one slow or dead node costs one timeout
+     * instead of one per node.
+     * @param argsByNode the command arguments for each node
+     * @return the reply payload of each node that acknowledged in time
+     */
+    private Map<IECSNode, String> sendCommandToAll(ECSCommand command, Map<IECSNode, String> argsByNode, long timeoutMs) {
+        Map<IECSNode, CompletableFuture<String>> pending = new HashMap<>();
+        for (Map.Entry<IECSNode, String> node : argsByNode.entrySet()) {
+            pending.put(node.getKey(), sendCommandAsync(node.getKey(), command, node.getValue()));
+        }
+        Map<IECSNode, String> replies = new HashMap<>();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Map.Entry<IECSNode, CompletableFuture<String>> reply : pending.entrySet()) {
+            String payload = awaitReply(reply.getValue(), command, reply.getKey().getNodeName(), deadline);
+            if (payload != null) {
+                replies.put(reply.getKey(), payload);
+            }
+        }
+        return replies;
+    }
+
+    private CompletableFuture<String> sendCommandAsync(IECSNode node, ECSCommand command, String args) {
+        System.out.println("Sending command to KVServer: " + command + " to " + node.getNodeName());
+        try {
+            return channelFor(node).send(command, args);
+        } catch (IOException e) {
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * @return the reply payload, "" if the node acknowledged without one, or null if the command failed
+     */
+    private String awaitReply(CompletableFuture<String> reply, ECSCommand command, String nodeName, long deadline) {
+        try {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            String payload = reply.get(remaining, TimeUnit.MILLISECONDS);
+            System.out.println(command + " acknowledged by: " + nodeName);
+            return payload != null ? payload : "";
+        } catch (TimeoutException e) {
+            System.err.println("Error sending " + command + " to node " + nodeName + ": not acknowledged in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error sending " + command + " to node " + nodeName + ": " + e.getCause().getMessage());
+        }
+        return null;
+    }
+
+    private void closeControlChannel(String nodeName) {
+        ECSControlChannel channel = controlChannels.remove(nodeName);
+        if (channel != null) {
+            channel.close();
         }
     }
     
@@ -605,6 +1203,9 @@ public class ECSClient implements IECSClient {
         // TODO
         System.out.println("Shutting down all nodes...");
         nodes.clear(); // Assuming nodes are removed from tracking as well
+        for (String nodeName : new ArrayList<>(controlChannels.keySet())) {
+            closeControlChannel(nodeName);
+        }
         return true;
     }
 
@@ -629,7 +1230,7 @@ public class ECSClient implements IECSClient {
     }
 
     @Override
-    public IECSNode addNode(String cacheStrategy, int cacheSize) {
+    public synchronized IECSNode addNode(String cacheStrategy, int cacheSize) {
         String nodeHost = "localhost"; 
         int nodePort = 50000 + nodes.size(); // Ensure unique port numbers
         String nodeName = "Node_" + (nodes.size() + 1); 
@@ -637,22 +1238,7 @@ public class ECSClient implements IECSClient {
 
         if (!nodes.containsKey(nodeName)){
             ECSNode node = new ECSNode(nodeName, nodeHost, nodePort, cacheStrategy, cacheSize, lowHashRange, highHashRange);
-            setWriteLock(node, true);
-        
-            metadata.addNode(node); // Delegates to Metadata to handle hash and rebalance
-            nodes.put(nodeName, node); // Keep track of nodes
-
-            updateAllNodesConfiguration(); // Update and send configuration to all nodes to ensure consistency
-
-            // redistribute Data After Node Addition
-            for (IECSNode existed_node : nodes.values()) {
-                // Exclude the new node to avoid fetching data that has just been initialized and is empty
-                if (!existed_node.equals(node)) {
-                    fetchServerData(existed_node);
-                }
-            }
-            
-            
+            changeTopology(Collections.singletonList(node), Collections.<String>emptyList(), Collections.<String, String>emptyMap());
             System.out.println("Added Node: " + nodeName);
             return node;
         }
@@ -665,30 +1251,17 @@ public class ECSClient implements IECSClient {
     }
 
     /* Overload addNode method */
-    public IECSNode addNode(String cacheStrategy, int cacheSize, String nodeName) {
-        String nodeHost = "localhost"; 
-        String[] parts = nodeName.split(":",2);
-        int nodePort = Integer.parseInt(parts[1]);
-
+    public IECSNode addNode(String cacheStrategy, int cacheSize, String nodeName, int adminPort) {
+        return addNode(cacheStrategy, cacheSize, nodeName, adminPort, 1);
+    }
 
+    /**
+     * @param weight capacity relative to the other nodes, scales the node's token count
+     */
+    public synchronized IECSNode addNode(String cacheStrategy, int cacheSize, String nodeName, int adminPort, int weight) {
         if (!nodes.containsKey(nodeName)){
-            ECSNode node = new ECSNode(nodeName, nodeHost, nodePort, cacheStrategy, cacheSize, lowHashRange, highHashRange);
-            setWriteLock(node, true);
-        
-            metadata.addNode(node); // Delegates to Metadata to handle hash and rebalance
-            nodes.put(nodeName, node); // Keep track of nodes
-
-            updateAllNodesConfiguration(); // Update and send configuration to all nodes to ensure consistency
-
-            // redistribute Data After Node Addition
-            for (IECSNode existed_node : nodes.values()) {
-                // Exclude the new node to avoid fetching data that has just been initialized and is empty
-                if (!existed_node.equals(node)) {
-                    fetchServerData(existed_node);
-                }
-            }
-            
-            
+            ECSNode node = newNode(nodeName, cacheStrategy, cacheSize, adminPort, weight);
+            changeTopology(Collections.singletonList(node), Collections.<String>emptyList(), Collections.<String, String>emptyMap());
             System.out.println("Added Node: " + nodeName);
             return node;
         }
@@ -713,87 +1286,110 @@ public class ECSClient implements IECSClient {
     }
 
     /* Overload addNodes method */
-    public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize, String[] nodeNames) {
+    public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize, String[] nodeNames, int[] adminPorts) {
+        int[] weights = new int[count];
+        Arrays.fill(weights, 1);
+        return addNodes(count, cacheStrategy, cacheSize, nodeNames, adminPorts, weights);
+    }
+
+    /* All nodes join in a single ring change */
+    public synchronized Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize, String[] nodeNames, int[] adminPorts, int[] weights) {
+        List<ECSNode> joining = new ArrayList<>();
+        for (int i = 0; i < count; i++){
+            joining.add(newNode(nodeNames[i], cacheStrategy, cacheSize, adminPorts[i], weights[i]));
+        }
+        changeTopology(joining, Collections.<String>emptyList(), Collections.<String, String>emptyMap());
         Collection<IECSNode> newNodes = new HashSet<IECSNode>(); 
         for (int i = 0; i < count; i++){
-            IECSNode node = addNode(cacheStrategy, cacheSize, nodeNames[i]); 
-            sendConfiguration(node);
-            newNodes.add(node); 
+            newNodes.add(nodes.get(nodeNames[i])); 
         }
         return newNodes; 
     }
 
 
 
+    /**
+     * Sends every node its ranges and the new metadata in two phases, each
+     * to all nodes at once: PREPARE_CONFIG stages the configuration, and
+     * once every reachable node has it, COMMIT_CONFIG makes them switch
+     * together. A node that misses the prepare deadline keeps its old
+     * configuration and is left out of the commit.
+     */
     public void updateAllNodesConfiguration() {
         System.out.println("ECSClient, Updating all nodes"); 
         List<String> nodeNames = new ArrayList<>(nodes.keySet());
         System.out.println("Current Nodes in the System: " + nodeNames);
 
-        StringBuilder allNodesMetadata = new StringBuilder(); // Build metadata string
-        for (ECSNode node : metadata.getHashRing().values()) { // Fetch nodes directly from Metadata
-            String[] hashRange = metadata.getHashRangeForNode(node.getNodeName());
-            if (hashRange != null) {
-                sendConfiguration(node, hashRange[0], hashRange[1]); // Apply updated hash range
-                
-                // Update node metadata
-                String nodeMetadata = hashRange[0] + "," + hashRange[1] + "," + node.getNodeHost() + ":" + String.valueOf(node.getNodePort()) + ";";
-                allNodesMetadata.append(nodeMetadata); 
+        Map<IECSNode, List<String[]>> configs = new HashMap<>();
+        for (ECSNode node : metadata.getNodes()) { // Fetch nodes directly from Metadata
+            List<String[]> hashRanges = metadata.getHashRangesForNode(node.getNodeName());
+            if (hashRanges != null && !hashRanges.isEmpty()) {
+                configs.put(node, hashRanges);
             }
         }
-        // Update metadata for all nodes and send to all nodes
-        nodesMetadata = allNodesMetadata.toString();
-        for (ECSNode node : metadata.getHashRing().values()) { // Fetch nodes directly from Metadata
-            String[] hashRange = metadata.getHashRangeForNode(node.getNodeName());
-            if (hashRange != null) {
-                sendMetadata(node); // Send updated metadata
+        // Each range ends at its token, the metadata is derived from the tokens alone
+        TreeMap<String, String> tokens = new TreeMap<>();
+        for (Map.Entry<String, ECSNode> token : metadata.getHashRing().entrySet()) {
+            tokens.put(token.getKey(), token.getValue().getNodeHost() + ":" + token.getValue().getNodePort());
+        }
+        metadataEpoch++;
+        ringHistory.add(new VersionedRing(metadataEpoch, tokens));
+
+        // Replicas are reached on their admin ports, every node gets the directory ahead of the ring that uses it
+        StringBuilder replication = new StringBuilder().append(replicationFactor).append(' ').append(ackMode);
+        for (ECSNode node : metadata.getNodes()) {
+            if (node.getAdminPort() > 0) {
+                replication.append(' ').append(node.getNodeHost()).append(':').append(node.getNodePort())
+                    .append(' ').append(node.getAdminPort());
             }
         }
-    }
-    
-    private void sendConfiguration(ECSNode node, String lowerHash, String upperHash) {
-        String command = ECS_SECRET_TOKEN + " SET_CONFIG " + lowerHash + " " + upperHash;
-        System.out.println("Sending command to KVServer: " + command);
-        
-        try (Socket socket = new Socket(node.getNodeHost(), node.getNodePort());
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println(command);
-            System.out.println("Configuration sent successfully to: " + node.getNodeName());
-        } catch (IOException e) {
-            System.err.println("Error sending configuration to node: " + e.getMessage());
+        Map<IECSNode, String> replicationArgs = new HashMap<>();
+        for (IECSNode node : configs.keySet()) {
+            replicationArgs.put(node, replication.toString());
         }
-    }
-
-    private void sendMetadata(ECSNode node) {
-        String command = ECS_SECRET_TOKEN + " SET_METADATA " + nodesMetadata;
-        System.out.println("Sending command to KVServer: " + command);
-        
-        try (Socket socket = new Socket(node.getNodeHost(), node.getNodePort());
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println(command);
-            System.out.println("Updated Metadata sent successfully to: " + node.getNodeName());
-        } catch (IOException e) {
-            System.err.println("Error sending updated metadata to node: " + e.getMessage());
+        sendCommandToAll(ECSCommand.SET_REPLICATION, replicationArgs, CONTROL_COMMAND_TIMEOUT);
+
+        // Nodes get the changes since the version they last committed, or a snapshot if that is unknown or too old
+        Map<IECSNode, String> prepare = new HashMap<>();
+        for (Map.Entry<IECSNode, List<String[]>> config : configs.entrySet()) {
+            Long committed = committedEpochs.get(config.getKey().getNodeName());
+            RingDelta delta = ringHistory.since(committed != null ? committed : RingDelta.SNAPSHOT);
+            prepare.put(config.getKey(), metadataEpoch + " " + delta.encode() + " " + formatRanges(config.getValue()));
         }
-    }
-
-    private void setWriteLockAllNodes(boolean writeLock) {
-        for (ECSNode node : metadata.getHashRing().values()) { // Fetch nodes directly from Metadata
-            setWriteLock(node, writeLock);
+        Map<IECSNode, String> commit = new HashMap<>();
+        for (IECSNode node : sendCommandToAll(ECSCommand.PREPARE_CONFIG, prepare, CONTROL_COMMAND_TIMEOUT).keySet()) {
+            commit.put(node, String.valueOf(metadataEpoch));
+        }
+        Map<IECSNode, String> committed = sendCommandToAll(ECSCommand.COMMIT_CONFIG, commit, CONTROL_COMMAND_TIMEOUT);
+        for (IECSNode node : configs.keySet()) {
+            if (committed.containsKey(node)) {
+                committedEpochs.put(node.getNodeName(), metadataEpoch);
+            } else {
+                committedEpochs.remove(node.getNodeName()); // its version is unknown now
+            }
+        }
+        if (committed.size() < configs.size()) {
+            List<String> missing = new ArrayList<>();
+            for (IECSNode node : configs.keySet()) {
+                if (!committed.containsKey(node)) {
+                    missing.add(node.getNodeName());
+                }
+            }
+            LOGGER.warn("Metadata epoch " + metadataEpoch + " not applied on " + missing);
         }
     }
     
-    private void setWriteLock(ECSNode node, boolean writeLock) {
-        String command = ECS_SECRET_TOKEN + " SET_WRITE_LOCK " + String.valueOf(writeLock);
-        System.out.println("Sending command to KVServer: " + command);
-        
-        try (Socket socket = new Socket(node.getNodeHost(), node.getNodePort());
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println(command);
-            System.out.println("Write lock command sent successfully to: " + node.getNodeName());
-        } catch (IOException e) {
-            System.err.println("Error sending write lock command to node: " + e.getMessage());
+    /* SET_CONFIG carries "low high" for every range the node owns */
+    private void sendConfiguration(IECSNode node, List<String[]> hashRanges) {
+        sendCommand(node, ECSCommand.SET_CONFIG, formatRanges(hashRanges));
+    }
+
+    private void setWriteLock(Collection<ECSNode> writeLockNodes, boolean writeLock) {
+        Map<IECSNode, String> args = new HashMap<>();
+        for (ECSNode node : writeLockNodes) {
+            args.put(node, String.valueOf(writeLock));
         }
+        sendCommandToAll(ECSCommand.SET_WRITE_LOCK, args, CONTROL_COMMAND_TIMEOUT);
     }
     
     @Override
@@ -808,17 +1404,9 @@ public class ECSClient implements IECSClient {
         return false;
     }
 
-    public boolean removeNodes(Collection<String> nodeNames) {
+    public synchronized boolean removeNodes(Collection<String> nodeNames) {
         System.out.println("Removed nodes: " + nodeNames);
-        for (String nodeName : nodeNames) {
-            IECSNode iNode = nodes.get(nodeName); 
-            if (iNode != null && iNode instanceof ECSNode) { 
-                ECSNode node = (ECSNode) iNode; // Convert to ECSNode
-                metadata.removeNode(node); // Remove ECSNode from metadata
-                nodes.remove(nodeName); // Remove node from tracking
-            }
-        }
-        updateAllNodesConfiguration();
+        changeTopology(Collections.<ECSNode>emptyList(), nodeNames, Collections.<String, String>emptyMap());
         return true;
     }
 
@@ -826,34 +1414,41 @@ public class ECSClient implements IECSClient {
 
 
     public void sendConfiguration(IECSNode node) {
-        String host = node.getNodeHost();
-        int port = node.getNodePort();
-        String[] hashRange = node.getNodeHashRange();
-        String lowerHash = hashRange[0]; 
-        String upperHash = hashRange[1]; 
+        List<String[]> hashRanges = node instanceof ECSNode
+            ? ((ECSNode) node).getNodeHashRanges() : Collections.singletonList(node.getNodeHashRange());
     
-        if (lowerHash == null || upperHash == null) {
+        if (hashRanges.isEmpty() || hashRanges.get(0)[0] == null || hashRanges.get(0)[1] == null) {
             System.err.println("Hash range for node " + node.getNodeName() + " is incomplete.");
             return;
         }
     
-        String command = ECS_SECRET_TOKEN + " SET_CONFIG " + lowerHash + " " + upperHash;
-        System.out.println("Sending command to KVServer: " + command);
-        
-        try (Socket socket = new Socket(host, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println(command);
-            System.out.println("Configuration sent successfully to: " + node.getNodeName());
-        } catch (IOException e) {
-            System.err.println("Error sending configuration to node: " + e.getMessage());
-        }
+        sendConfiguration(node, hashRanges);
     }
     
 
     public static void main(String[] args) {
         try {
             int ecsPort = 38121;
-            ECSClient ecsClient = new ECSClient(ecsPort);
+            int vnodes = DEFAULT_VNODES_PER_NODE;
+            long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+            double phiThreshold = DEFAULT_PHI_THRESHOLD;
+            int replicationFactor = DEFAULT_REPLICATION_FACTOR;
+            AckMode ackMode = DEFAULT_ACK_MODE;
+            for (int i = 0; i < args.length - 1; i++) {
+                if ("-v".equals(args[i])) {
+                    vnodes = Integer.parseInt(args[++i]);
+                } else if ("-h".equals(args[i])) {
+                    heartbeatInterval = Long.parseLong(args[++i]);
+                } else if ("-phi".equals(args[i])) {
+                    phiThreshold = Double.parseDouble(args[++i]);
+                } else if ("-r".equals(args[i])) {
+                    replicationFactor = Integer.parseInt(args[++i]);
+                } else if ("-ack".equals(args[i])) {
+                    ackMode = AckMode.valueOf(args[++i].toUpperCase());
+                }
+            }
+            ECSClient ecsClient = new ECSClient(ecsPort, vnodes, heartbeatInterval, phiThreshold);
+            ecsClient.setReplication(replicationFactor, ackMode);
             
             // // Adding
             // System.out.println("Adding nodes...");
@@ -0,0 +1,154 @@
+package app_kvECS;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import ecs.ECSCommand;
+
+/**
+ * Long-lived control connection from the ECS to one KVServer.
+ *
+ * Every command carries a request id and is acknowledged by the server, so
+ * several callers can have commands in flight on the same socket; a reader
+ * thread matches each ACK to its pending command.
+ */
+public class ECSControlChannel {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSControlChannel.class);
+
+    private final String nodeName;
+    private final Socket socket;
+    private final PrintWriter out;
+    private final BufferedReader in;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<Integer, CompletableFuture<String>>();
+    private volatile boolean open;
+
+    public ECSControlChannel(String nodeName, String host, int port, int connectTimeout) throws IOException {
+        this.nodeName = nodeName;
+        this.socket = new Socket();
+        this.socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        this.socket.setTcpNoDelay(true);
+        this.out = new PrintWriter(socket.getOutputStream(), true);
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.open = true;
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReplies();
+            }
+        }, "ecs-control-" + nodeName);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a command without waiting for its acknowledgement.
+     * @return future completed with the reply payload (possibly null), or
+     *         completed exceptionally if the server answers ERROR or the channel closes
+     */
+    public CompletableFuture<String> send(ECSCommand command, String args) {
+        CompletableFuture<String> reply = new CompletableFuture<String>();
+        if (!open) {
+            reply.completeExceptionally(new IOException("Control channel to " + nodeName + " is closed"));
+            return reply;
+        }
+        int id = nextId.incrementAndGet();
+        pending.put(id, reply);
+        String line = ECSCommand.SECRET_TOKEN + " " + id + " " + command.name() + (args != null ? " " + args : "");
+        synchronized (out) {
+            out.println(line);
+        }
+        if (out.checkError()) {
+            pending.remove(id);
+            close();
+            reply.completeExceptionally(new IOException("Could not write to control channel of " + nodeName));
+        }
+        return reply;
+    }
+
+    /**
+     * Sends a command and waits for its acknowledgement.
+     * @return the reply payload, null if the server sent none
+     */
+    public String call(ECSCommand command, String args, long timeoutMs) throws IOException {
+        try {
+            return send(command, args).get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException(command + " to " + nodeName + " not acknowledged within " + timeoutMs + " ms");
+        } catch (ExecutionException e) {
+            throw new IOException(command + " to " + nodeName + " failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + command + " to " + nodeName);
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing control channel to " + nodeName, e);
+        }
+        failPending(new IOException("Control channel to " + nodeName + " closed"));
+    }
+
+    private void readReplies() {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // ACK <id> OK|ERROR [payload]
+                String[] parts = line.split(" ", 4);
+                if (parts.length < 3 || !ECSCommand.ACK.equals(parts[0])) {
+                    LOGGER.warn("Unexpected line on control channel of " + nodeName + ": " + line);
+                    continue;
+                }
+                CompletableFuture<String> reply = pending.remove(Integer.valueOf(parts[1]));
+                if (reply == null) {
+                    continue;
+                }
+                String payload = parts.length > 3 ? parts[3] : null;
+                if (ECSCommand.OK.equals(parts[2])) {
+                    reply.complete(payload);
+                } else {
+                    reply.completeExceptionally(new IOException(payload != null ? payload : "command rejected"));
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                LOGGER.error("Control channel to " + nodeName + " lost", e);
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.error("Malformed acknowledgement on control channel of " + nodeName, e);
+        }
+        close();
+    }
+
+    private void failPending(IOException cause) {
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<String> reply = pending.remove(id);
+            if (reply != null) {
+                reply.completeExceptionally(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package app_kvECS;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi accrual failure detector over the heartbeat replies of each node.
+ * Instead of a fixed timeout it reports how unlikely the current silence is
+ * given the intervals seen so far: phi = -log10(P(no reply for this long)).
+ * Intervals are modelled as exponentially distributed around their recent
+ * mean, which makes phi = elapsed / mean * log10(e). A node is suspected once
+ * phi passes the threshold, so a threshold of 8 with replies every 500 ms
+ * suspects a node after roughly 9 s of silence; a jittery node gets more
+ * slack automatically. The mean never drops below the heartbeat period:
+ * replies that queued behind a slow command arrive back to back and must not
+ * make the next ordinary gap look like a failure.
+ */
+public class FailureDetector {
+
+    private static final int WINDOW_SIZE = 100; // recent intervals the mean is taken over
+    private static final double LOG10_E = Math.log10(Math.E);
+
+    private final long expectedIntervalMs;
+    private final double phiThreshold;
+    private final ConcurrentHashMap<String, ArrivalWindow> windows = new ConcurrentHashMap<String, ArrivalWindow>();
+
+    /**
+     * @param expectedIntervalMs heartbeat period, the mean until intervals have been observed
+     * @param phiThreshold suspicion level at which a node counts as failed
+     */
+    public FailureDetector(long expectedIntervalMs, double phiThreshold) {
+        this.expectedIntervalMs = expectedIntervalMs;
+        this.phiThreshold = phiThreshold;
+    }
+
+    /* Records a reply; the first one starts watching the node */
+    public void heartbeat(String node, long now) {
+        ArrivalWindow window = windows.get(node);
+        if (window == null) {
+            window = new ArrivalWindow(now);
+            ArrivalWindow existing = windows.putIfAbsent(node, window);
+            if (existing == null) {
+                return;
+            }
+            window = existing;
+        }
+        window.arrived(now);
+    }
+
+    /**
+     * @return the suspicion level of the node, 0 if it is not watched
+     */
+    public double phi(String node, long now) {
+        ArrivalWindow window = windows.get(node);
+        return window != null ? window.phi(now) : 0;
+    }
+
+    public boolean isSuspected(String node, long now) {
+        return phi(node, now) > phiThreshold;
+    }
+
+    public void remove(String node) {
+        windows.remove(node);
+    }
+
+    private class ArrivalWindow {
+        private final ArrayDeque<Long> intervals = new ArrayDeque<Long>();
+        private long sum;
+        private long last;
+
+        ArrivalWindow(long now) {
+            this.last = now;
+        }
+
+        synchronized void arrived(long now) {
+            long interval = now - last;
+            last = now;
+            intervals.addLast(interval);
+            sum += interval;
+            if (intervals.size() > WINDOW_SIZE) {
+                sum -= intervals.removeFirst();
+            }
+        }
+
+        synchronized double phi(long now) {
+            double mean = intervals.isEmpty() ? expectedIntervalMs : Math.max(expectedIntervalMs, (double) sum / intervals.size());
+            return (now - last) / mean * LOG10_E;
+        }
+    }
+}
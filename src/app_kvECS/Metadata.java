@@ -1,20 +1,51 @@
 package app_kvECS;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import ecs.ECSNode;
 
+import org.apache.log4j.Logger;
+
 
 import java.net.Socket;
 import java.io.*;
 
 public class Metadata {
-    private TreeMap<String, ECSNode> hashRing = new TreeMap<>();
+    private static final Logger LOGGER = Logger.getLogger(Metadata.class);
+
+    private TreeMap<String, ECSNode> hashRing = new TreeMap<>(); // token hash -> node, vnodesPerNode tokens per node
+    private final int vnodesPerNode;
+
+    public Metadata() {
+        this(1);
+    }
+
+    /**
+     * @param vnodesPerNode number of tokens (virtual nodes) each server places on the ring
+     */
+    public Metadata(int vnodesPerNode) {
+        this.vnodesPerNode = Math.max(1, vnodesPerNode);
+    }
 
     public TreeMap<String, ECSNode> getHashRing() { // Accessor for ECSClient to iterate over hashRing if necessary
         return hashRing;
     }
 
+    /* Every node once, in ring order of its first token */
+    public Collection<ECSNode> getNodes() {
+        return new LinkedHashSet<ECSNode>(hashRing.values());
+    }
+
+    public int getVnodesPerNode() {
+        return vnodesPerNode;
+    }
+
     public boolean isHashRingEmpty() {
         return hashRing.isEmpty();
     }
@@ -36,64 +67,141 @@ public class Metadata {
     }
 
     public void addNode(ECSNode node) {
-        // Compute the node's hash and add it to the hash ring
-        String nodeHash = ECSClient.getMD5Hash(node.getNodeHost() + ":" + node.getNodePort());
-        hashRing.put(nodeHash, node);
-        rebalance(); // Adjust hash ranges for all nodes
+        changeNodes(Collections.singletonList(node), Collections.<ECSNode>emptyList());
     }
     
     public void removeNode(ECSNode node) {
-        // Compute the node's hash and remove it from the hash ring
-        String nodeHash = ECSClient.getMD5Hash(node.getNodeHost() + ":" + node.getNodePort());
-        hashRing.remove(nodeHash);
-        rebalance(); // Adjust hash ranges after removal
+        changeNodes(Collections.<ECSNode>emptyList(), Collections.singletonList(node));
+    }
+
+    /* Adds and removes several nodes with a single rebalance */
+    public void changeNodes(Collection<ECSNode> added, Collection<ECSNode> removed) {
+        for (ECSNode node : removed) {
+            // Remove all of the node's tokens from the hash ring
+            for (String token : tokensFor(node)) {
+                hashRing.remove(token);
+            }
+        }
+        for (ECSNode node : added) {
+            // Place the node's tokens on the hash ring
+            for (String token : tokensFor(node)) {
+                hashRing.put(token, node);
+            }
+        }
+        rebalance(); // Adjust hash ranges for all nodes
+    }
+
+    /* Copy of the ring as it is now, to compare against after a change */
+    public TreeMap<String, ECSNode> snapshot() {
+        return new TreeMap<String, ECSNode>(hashRing);
+    }
+
+    /**
+     * Computes the minimal set of ranges whose owner differs between two
+     * rings. Every token of either ring is a cut point; between two
+     * consecutive cut points both rings have a single owner, and adjacent
+     * pieces with the same previous and new owner are merged again.
+     */
+    public static List<Transfer> transfersBetween(TreeMap<String, ECSNode> before, TreeMap<String, ECSNode> after) {
+        List<Transfer> transfers = new ArrayList<Transfer>();
+        if (before.isEmpty() || after.isEmpty()) {
+            return transfers; // nothing to move from, or nowhere to move to
+        }
+        TreeSet<String> cuts = new TreeSet<String>(before.keySet());
+        cuts.addAll(after.keySet());
+
+        Transfer open = null;
+        String low = cuts.last();
+        for (String high : cuts) {
+            // The piece [low, high) belongs to the first token at or above high
+            ECSNode from = ownerAt(before, high);
+            ECSNode to = ownerAt(after, high);
+            if (from == to) {
+                open = null;
+            } else if (open != null && open.from == from && open.to == to) {
+                open.high = high;
+            } else {
+                open = new Transfer(low, high, from, to);
+                transfers.add(open);
+            }
+            low = high;
+        }
+        // The piece ending at the first cut and the one ending at the last are neighbours
+        if (transfers.size() > 1) {
+            Transfer first = transfers.get(0);
+            Transfer last = transfers.get(transfers.size() - 1);
+            if (first.low.equals(last.high) && first.from == last.from && first.to == last.to) {
+                first.low = last.low;
+                transfers.remove(transfers.size() - 1);
+            }
+        }
+        return transfers;
+    }
+
+    private static ECSNode ownerAt(TreeMap<String, ECSNode> ring, String cut) {
+        Map.Entry<String, ECSNode> owner = ring.ceilingEntry(cut);
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    /** A [low, high) range that changes owner */
+    public static final class Transfer {
+        private String low;
+        private String high;
+        private final ECSNode from;
+        private final ECSNode to;
+
+        Transfer(String low, String high, ECSNode from, ECSNode to) {
+            this.low = low;
+            this.high = high;
+            this.from = from;
+            this.to = to;
+        }
+
+        public String[] getHashRange() {
+            return new String[]{low, high};
+        }
+
+        public ECSNode getFrom() {
+            return from;
+        }
+
+        public ECSNode getTo() {
+            return to;
+        }
+    }
+
+    /*
+     * A node places vnodesPerNode tokens per unit of weight, so its share of the
+     * ring grows with its capacity. The first token is MD5(host:port) as without
+     * virtual nodes, the others MD5(host:port#i).
+     */
+    private List<String> tokensFor(ECSNode node) {
+        String address = node.getNodeHost() + ":" + node.getNodePort();
+        int tokenCount = vnodesPerNode * node.getWeight();
+        List<String> tokens = new ArrayList<String>(tokenCount);
+        tokens.add(ECSClient.getMD5Hash(address));
+        for (int i = 1; i < tokenCount; i++) {
+            tokens.add(ECSClient.getMD5Hash(address + "#" + i));
+        }
+        return tokens;
     }
 
     private void rebalance() {
-        // sendStatusToECS(); 
         if (hashRing.isEmpty()) {
-
-            // BIZARRE IT ENTERS HERE 
             System.out.println("Hash ring is empty. No rebalance needed.");
             return; // Guard against empty hash ring
         }
-    
-        String firstHash = hashRing.firstKey();
-        String lastHash = hashRing.lastKey();
-        Map.Entry<String, ECSNode> previousEntry = hashRing.lowerEntry(firstHash); // This should wrap around to the last entry
-    
-        if (previousEntry == null) {
-            previousEntry = hashRing.lastEntry(); // Ensure wrap-around if lowerEntry doesn't work as expected
+        for (ECSNode node : hashRing.values()) {
+            node.clearHashRanges();
         }
 
-        System.out.println("Rebalancing. First hash: " + firstHash + ", Last hash: " + lastHash);
-
-    
-        // Print initial state
-        System.out.println("Starting rebalance. First hash: " + firstHash + ", Last hash: " + lastHash);
-        System.out.println("Initial previous entry: " + previousEntry.getKey());
-    
+        // Each token owns [previous token, token), the first one wraps around from the last
+        String previousHash = hashRing.lastKey();
         for (Map.Entry<String, ECSNode> currentEntry : hashRing.entrySet()) {
-            String currentHash = currentEntry.getKey();
-            ECSNode currentNode = currentEntry.getValue();
-            
-            String lowerBound = previousEntry.getKey();
-            String upperBound = currentHash;
-    
-            currentNode.setHashRange(lowerBound, upperBound); // Update the node's hash range
-    
-            // Diagnostic print
-            System.out.println("Node: " + currentNode.getNodeName() + ", Lower Bound: " + lowerBound + ", Upper Bound: " + upperBound);
-    
-            previousEntry = currentEntry; // Move to the next node
+            currentEntry.getValue().addHashRange(previousHash, currentEntry.getKey());
+            previousHash = currentEntry.getKey();
         }
-    
-        // Special handling for the first node to ensure wrap-around logic
-        ECSNode firstNode = hashRing.get(firstHash);
-        firstNode.setHashRange(lastHash, firstHash); // Wrap around: from last to first
-    
-        // Diagnostic print for the first node wrap-around
-        System.out.println("First Node Wrap-around: " + firstNode.getNodeName() + ", Lower Bound: " + lastHash + ", Upper Bound: " + firstHash);
+        LOGGER.debug("Rebalanced " + hashRing.size() + " tokens over " + getNodes().size() + " nodes");
     }
     
     public String[] getHashRangeForNode(String nodeName) {
@@ -106,6 +214,26 @@ public class Metadata {
         return null; // Node not found
     }
 
+    public List<String[]> getHashRangesForNode(String nodeName) {
+        for (ECSNode node : hashRing.values()) {
+            if (node.getNodeName().equals(nodeName)) {
+                return node.getNodeHashRanges();
+            }
+        }
+        return null; // Node not found
+    }
+
+    /**
+     * @return the node owning the key hash: the first token above it, wrapping to the first token
+     */
+    public ECSNode getNodeForKey(String keyHash) {
+        if (hashRing.isEmpty()) {
+            return null;
+        }
+        Map.Entry<String, ECSNode> owner = hashRing.higherEntry(keyHash);
+        return owner != null ? owner.getValue() : hashRing.firstEntry().getValue();
+    }
+
     // private void sendStatusToECS() {
     //     String command = "SERVER_WRITE_LOCK";
     //     System.out.println("Metdata -> ECSClient: " + command);
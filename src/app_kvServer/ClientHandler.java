@@ -3,14 +3,13 @@ package app_kvServer;
 import shared.messages.SimpleKVMessage;
 import shared.messages.KVMessage.StatusType;
 
-import java.io.PushbackInputStream;
-
 
 import java.net.Socket;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.IOException;
+import java.io.EOFException;
 import java.net.SocketException;
 
 import org.apache.log4j.Logger;
@@ -18,37 +17,47 @@ import org.apache.log4j.Level;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 
 import shared.messages.KVMessage;
 import shared.messages.SimpleKVCommunication;
+import shared.messages.SimpleKVBatch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.math.BigInteger;
 
-import ecs.ConsistentHashing;
+import ecs.HashRangeSet;
+import ecs.RingDelta;
 
 public class ClientHandler implements Runnable {
     private Socket clientSocket;
     private KVServer server; 
-    private boolean isOpen;
-    private PushbackInputStream input; // Change to PushbackInputStream
-    private OutputStream output;
+    private volatile boolean isOpen;
+    private volatile long lastActivity; // time of the last request or response, for the idle reaper
+    private InputStream input; // Buffered, so available() tells whether more requests are queued
+    private OutputStream output; // Buffered, flushed once the pipelined requests are drained
 
     private static final Logger LOGGER = Logger.getRootLogger();
+    private static final int IO_BUFFER_SIZE = 8192;
+    private static final int INLINE_METADATA_LIMIT = 16 * 1024; // larger rings are fetched as deltas instead
 
-    private String[] nodeHashRange;
-
-    // Constructor now accepts a PushbackInputStream
-    public ClientHandler(Socket socket, KVServer server, String[] keyRange, PushbackInputStream input) {
+    // Constructor accepts the raw socket input, buffered here if needed
+    public ClientHandler(Socket socket, KVServer server, InputStream input) {
         this.clientSocket = socket;
         this.server = server; 
         this.isOpen = true;
-        this.input = input; // Use the provided PushbackInputStream
-        this.nodeHashRange = keyRange; 
+        this.input = input.markSupported() ? input : new BufferedInputStream(input, IO_BUFFER_SIZE);
+        this.lastActivity = System.currentTimeMillis();
 
         try {
-            this.output = clientSocket.getOutputStream(); // Initialize output stream here
+            this.output = new BufferedOutputStream(clientSocket.getOutputStream(), IO_BUFFER_SIZE);
         } catch (IOException e) {
             LOGGER.error("Error initializing client handler I/O", e);
         }
@@ -65,9 +74,20 @@ public class ClientHandler implements Runnable {
                     SimpleKVMessage responseMessage = null;
 
                     String msg = SimpleKVCommunication.receiveMessage(input, LOGGER);
+                    lastActivity = System.currentTimeMillis();
                     System.out.println("ClientHandler received msg:" + msg);
                     // System.out.println("... REACHED CLIENT HANDLER ... 3");
                     SimpleKVMessage requestMessage = SimpleKVCommunication.parseMessage(msg, LOGGER);
+                    if (requestMessage.getStatus() == StatusType.PUT_STREAM) {
+                        // The chunks must be consumed before any reply so the connection stays framed
+                        requestMessage = receiveStreamedPut(requestMessage);
+                        if (requestMessage == null) {
+                            // Chunks that are not read cannot be told apart from requests, the connection ends here
+                            respond(new SimpleKVMessage(StatusType.PUT_ERROR, null, null));
+                            isOpen = false;
+                            break;
+                        }
+                    }
                     
                     // System.out.println("SUP:" + requestMessage.getMsg());
                     // if ("ECS_REQUEST_STORAGE_HANDOFF".equals(msg)) {
@@ -77,16 +97,23 @@ public class ClientHandler implements Runnable {
                         
 
                     // If server doesn't have node hash range
-                    if (nodeHashRange[0] == null && nodeHashRange[1] == null) {
+                    HashRangeSet range = server.getHashRanges();
+                    if (range == null) {
                         responseMessage = new SimpleKVMessage(StatusType.SERVER_STOPPED, null);
-                        SimpleKVCommunication.sendMessage(responseMessage, output, LOGGER);
+                        respond(responseMessage);
                     
                     // Updating Status during metadatat update (rebalance) - SERVER_WRITE_LOCK
-                    } else if (requestMessage.getStatus() == StatusType.PUT && !server.canWrite()){
-                        responseMessage = new SimpleKVMessage(StatusType.SERVER_WRITE_LOCK, null);
+                    } else if (isWrite(requestMessage.getStatus()) && !server.canWrite(requestMessage.getKey())){
+                        // Tell the client when to try again
+                        responseMessage = new SimpleKVMessage(StatusType.SERVER_WRITE_LOCK, Long.toString(server.getUnlockHintMs()));
                         System.out.println("SERVER_WRITE_LOCK TRIGGERD");
-                        SimpleKVCommunication.sendMessage(responseMessage, output, LOGGER);
+                        respond(responseMessage);
     
+                    // Batch requests (MGET/MPUT/MDELETE) - one response frame for the whole batch
+                    } else if (SimpleKVBatch.isBatch(requestMessage.getStatus())) {
+                        responseMessage = processBatch(requestMessage, range);
+                        respond(responseMessage);
+
                     // Keyrange request
                     } else if (requestMessage.getStatus() == StatusType.KEYRANGE){
                         try {
@@ -97,17 +124,31 @@ public class ClientHandler implements Runnable {
                             LOGGER.log(Level.ERROR, "Error processing get request", e);
                             responseMessage = new SimpleKVMessage(StatusType.SERVER_STOPPED, null);
                         }
-                        SimpleKVCommunication.sendMessage(responseMessage, output, LOGGER);
+                        respond(responseMessage);
+
+                    // Keyrange changes since the client's epoch, a full snapshot if that is too old or unreadable
+                    } else if (requestMessage.getStatus() == StatusType.KEYRANGE_DELTA){
+                        long epoch = RingDelta.SNAPSHOT;
+                        try {
+                            epoch = Long.parseLong(requestMessage.getPayload());
+                        } catch (NumberFormatException e) {
+                            LOGGER.warn("Invalid epoch in keyrange delta request: " + requestMessage.getPayload());
+                        }
+                        RingDelta delta = server.metadataSince(epoch);
+                        responseMessage = delta != null ? new SimpleKVMessage(StatusType.KEYRANGE_DELTA_SUCCESS, delta.encode())
+                            : new SimpleKVMessage(StatusType.KEYRANGE_DELTA_ERROR, null);
+                        respond(responseMessage);
 
                     // PUT/GET requests
                     } else {
                         System.out.println("HELLO... WE ARE DOING PUT/GET REQ");
                         System.out.println("requestMessage.getKey():" + requestMessage.getKey()); 
-                        String keyHash = ConsistentHashing.getKeyHash(requestMessage.getKey());
-                        System.out.println("keyHash:" + keyHash);   
-                        System.out.println("ClientHandler, Client keyHash: " + keyHash);
 
-                        if (ConsistentHashing.isKeyInRange(keyHash, nodeHashRange)) {
+                        // Servers holding a copy of the key answer reads for it too; a replica that has not
+                        // received the key yet sends the client on to the owner instead of reporting it missing
+                        if (requestMessage.getKey() != null && (range.containsKey(requestMessage.getKey())
+                                || (requestMessage.getStatus() == StatusType.GET && server.isReplicaOf(requestMessage.getKey())
+                                    && (server.inStorage(requestMessage.getKey()) || server.inCache(requestMessage.getKey()))))) {
                             System.out.println("KEY IN RANGE CONFIRMED");
                             switch (requestMessage.getStatus()) {
                                 case PUT:
@@ -130,7 +171,9 @@ public class ClientHandler implements Runnable {
                                             server.putKV(requestMessage.getKey(), requestMessage.getValue());
                                             // responseType = server.inStorage(requestMessage.getKey()) ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS;
                                         }
-                                        responseMessage = new SimpleKVMessage(responseType, requestMessage.getKey(), requestMessage.getValue());
+                                        // Large values are not echoed back
+                                        String echo = SimpleKVCommunication.shouldStream(requestMessage.getValue()) ? null : requestMessage.getValue();
+                                        responseMessage = new SimpleKVMessage(responseType, requestMessage.getKey(), echo);
                                     } catch (Exception e) {
                                         LOGGER.log(Level.ERROR, "Error processing put request", e);
                                         responseMessage = new SimpleKVMessage(StatusType.PUT_ERROR, null, null);
@@ -139,9 +182,14 @@ public class ClientHandler implements Runnable {
                                 case GET:
                                     try {
                                         String response = server.getKV(requestMessage.getKey());
-                                        StatusType responseType = (response != null) ? StatusType.GET_SUCCESS : StatusType.GET_ERROR;
-                                        responseMessage = new SimpleKVMessage(responseType, requestMessage.getKey(), response);
-                                        LOGGER.info("Processed GET request for key: " + requestMessage.getKey() + " with value: " + response);
+                                        if (SimpleKVCommunication.shouldStream(response)) {
+                                            respondStreamed(requestMessage.getKey(), response);
+                                            LOGGER.info("Processed GET request for key: " + requestMessage.getKey() + ", streamed " + response.length() + " chars");
+                                        } else {
+                                            StatusType responseType = (response != null) ? StatusType.GET_SUCCESS : StatusType.GET_ERROR;
+                                            responseMessage = new SimpleKVMessage(responseType, requestMessage.getKey(), response);
+                                            LOGGER.info("Processed GET request for key: " + requestMessage.getKey() + " with value: " + response);
+                                        }
                                     } catch (Exception e) {
                                         LOGGER.log(Level.ERROR, "Error processing get request", e);
                                         responseMessage = new SimpleKVMessage(StatusType.GET_ERROR, null, null);
@@ -152,19 +200,25 @@ public class ClientHandler implements Runnable {
                                     break;
                             }
                             if (responseMessage != null) { // Only send a response if responseMessage was set
-                                SimpleKVCommunication.sendMessage(responseMessage, output, LOGGER);
+                                respond(responseMessage);
                                 LOGGER.info("responseString: " + responseMessage.getMsg());
                             }
                         } else {
-                            // Server not responsible, respond with error and metadata
-                            responseMessage = new SimpleKVMessage(StatusType.SERVER_NOT_RESPONSIBLE, null);
-                            SimpleKVCommunication.sendMessage(responseMessage, output, LOGGER);
+                            // Server not responsible, respond with error and metadata unless it is too large to repeat on every misrouted request
+                            String metadata = server.keyrange();
+                            responseMessage = new SimpleKVMessage(StatusType.SERVER_NOT_RESPONSIBLE,
+                                metadata != null && metadata.length() <= INLINE_METADATA_LIMIT ? metadata : null);
+                            respond(responseMessage);
                         }
                     }
                 } catch (SocketException se) {
                     LOGGER.info("Client disconnected.");
                     isOpen = false;
                     break; // Break out of the loop
+                } catch (EOFException eof) {
+                    LOGGER.info("Client closed the connection.");
+                    isOpen = false;
+                    break; // Break out of the loop
                 } catch (IOException ioe) {
                     LOGGER.log(Level.ERROR, "Error! Connection Lost!", ioe);
                     isOpen = false;
@@ -183,13 +237,176 @@ public class ClientHandler implements Runnable {
             } catch (IOException e) {
                 LOGGER.log(Level.ERROR, "Error closing client socket", e);
             }
+            server.removeClientHandler(this, Thread.currentThread());
+        }
+    }
+
+    /**
+     * @return true if the connection saw no request or response for at least idleTimeoutMs
+     */
+    public boolean isIdle(long now, long idleTimeoutMs) {
+        return now - lastActivity >= idleTimeoutMs;
+    }
+
+    /**
+     * Closes the connection from outside the handler thread (idle reaper, shutdown).
+     * The blocked read then fails and the handler thread exits.
+     */
+    public void close() {
+        isOpen = false;
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.ERROR, "Error closing client socket", e);
+        }
+    }
+
+    private static boolean isWrite(StatusType status) {
+        return status == StatusType.PUT || status == StatusType.MPUT || status == StatusType.MDELETE;
+    }
+
+    /**
+     * Executes a batch request against storage. Keys outside of this node's
+     * range are answered with SERVER_NOT_RESPONSIBLE individually so the client
+     * only needs to re-route those. All writes of the batch are persisted once.
+     */
+    private SimpleKVMessage processBatch(SimpleKVMessage requestMessage, HashRangeSet range) {
+        StatusType op = requestMessage.getStatus();
+        List<String[]> entries;
+        try {
+            entries = SimpleKVBatch.decode(requestMessage.getPayload(), SimpleKVBatch.arityOf(op));
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.ERROR, "Malformed batch request", e);
+            return new SimpleKVMessage(op == StatusType.MGET ? StatusType.GET_ERROR : StatusType.PUT_ERROR, null, null);
+        }
+
+        List<String[]> results = new ArrayList<String[]>(entries.size());
+        Map<String, String> updates = new LinkedHashMap<String, String>();
+        for (String[] entry : entries) {
+            String key = entry[0];
+            if (key == null || !range.containsKey(key)) {
+                results.add(new String[]{StatusType.SERVER_NOT_RESPONSIBLE.name(), key, null});
+                continue;
+            }
+            if (op != StatusType.MGET && !server.canWrite(key)) {
+                // Only this key's range is moving, the rest of the batch goes through
+                results.add(new String[]{StatusType.SERVER_WRITE_LOCK.name(), key, Long.toString(server.getUnlockHintMs())});
+                continue;
+            }
+            boolean keyExists = server.inStorage(key) || server.inCache(key);
+            switch (op) {
+                case MGET:
+                    try {
+                        String value = server.getKV(key);
+                        results.add(new String[]{(value != null ? StatusType.GET_SUCCESS : StatusType.GET_ERROR).name(), key, value});
+                    } catch (Exception e) {
+                        LOGGER.log(Level.ERROR, "Error processing batch get for key: " + key, e);
+                        results.add(new String[]{StatusType.GET_ERROR.name(), key, null});
+                    }
+                    break;
+                case MPUT:
+                    keyExists = keyExists || updates.containsKey(key);
+                    updates.put(key, entry[1]);
+                    if (entry[1] == null) {
+                        results.add(new String[]{(keyExists ? StatusType.DELETE_SUCCESS : StatusType.DELETE_ERROR).name(), key, null});
+                    } else {
+                        results.add(new String[]{(keyExists ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS).name(), key, entry[1]});
+                    }
+                    break;
+                case MDELETE:
+                    if (keyExists) {
+                        updates.put(key, null);
+                        results.add(new String[]{StatusType.DELETE_SUCCESS.name(), key, null});
+                    } else {
+                        results.add(new String[]{StatusType.DELETE_ERROR.name(), key, null});
+                    }
+                    break;
+                default:
+                    results.add(new String[]{StatusType.PUT_ERROR.name(), key, null});
+                    break;
+            }
+        }
+
+        if (!updates.isEmpty()) {
+            try {
+                server.putKVBatch(updates);
+            } catch (Exception e) {
+                LOGGER.log(Level.ERROR, "Error processing batch write", e);
+                for (String[] result : results) {
+                    if (updates.containsKey(result[1])) {
+                        result[0] = (op == StatusType.MDELETE || result[2] == null ? StatusType.DELETE_ERROR : StatusType.PUT_ERROR).name();
+                    }
+                }
+            }
+        }
+        LOGGER.info("Processed " + op + " batch of " + entries.size() + " keys");
+        return new SimpleKVMessage(StatusType.BATCH_RESULT, SimpleKVBatch.encode(results));
+    }
+
+    /**
+     * Queues the response in the output buffer. The buffer is only flushed
+     * once no further request is already waiting in the input, so responses
+     * to pipelined requests leave in a single write.
+     */
+    private void respond(SimpleKVMessage responseMessage) throws IOException {
+        if (server.getMetadataEpoch() > 0) { // 0 until the ECS has sent any metadata
+            responseMessage.withEpoch(server.getMetadataEpoch());
+        }
+        synchronized (output) {
+            SimpleKVCommunication.sendMessage(responseMessage, output, LOGGER, false);
+            if (!hasPendingRequest()) {
+                output.flush();
+            }
+        }
+        lastActivity = System.currentTimeMillis();
+    }
+
+    private void respondStreamed(String key, String value) throws IOException {
+        synchronized (output) {
+            SimpleKVCommunication.sendStreamed(StatusType.GET_STREAM, key, value, output, LOGGER, false);
+            if (!hasPendingRequest()) {
+                output.flush();
+            }
         }
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /* Reads the chunks announced by a PUT_STREAM header and turns it into a regular PUT, null if the length is refused */
+    private SimpleKVMessage receiveStreamedPut(SimpleKVMessage header) throws IOException {
+        int length;
+        try {
+            length = Integer.parseInt(header.getValue());
+        } catch (NumberFormatException e) {
+            length = -1;
+        }
+        if (!SimpleKVCommunication.isStreamLength(length)) {
+            LOGGER.warn("Refused PUT_STREAM of " + header.getValue() + " chars for key " + header.getKey());
+            return null;
+        }
+        String value = SimpleKVCommunication.receiveStreamed(input, length);
+        lastActivity = System.currentTimeMillis();
+        return new SimpleKVMessage(StatusType.PUT, header.getKey(), value);
+    }
+
+    /* True if the next request already sits in the input, ignoring stray line terminators */
+    private boolean hasPendingRequest() throws IOException {
+        while (input.available() > 0) {
+            input.mark(1);
+            int next = input.read();
+            if (next > 31) {
+                input.reset();
+                return true;
+            }
+        }
+        return false;
     }
 
     public void sendShutdownMessage() {
         try {
             SimpleKVMessage shutdownMessage = new SimpleKVMessage(KVMessage.StatusType.SERVER_STOPPED, null);
-            SimpleKVCommunication.sendMessage(shutdownMessage, output, LOGGER); // Implement this method based on your message sending logic
+            synchronized (output) {
+                SimpleKVCommunication.sendMessage(shutdownMessage, output, LOGGER);
+            }
             LOGGER.info("Shutdown message sent to client");
         } catch (IOException e) {
             LOGGER.log(Level.ERROR, "Failed to send shutdown message to client", e);
@@ -0,0 +1,110 @@
+package app_kvServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.Level;
+
+import ecs.ECSCommand;
+
+/**
+ * Serves one long-lived control connection from the ECS. Each line is a
+ * command "secret <id> <COMMAND> [args]" and is answered with
+ * "ACK <id> OK [payload]" or "ACK <id> ERROR <reason>". MOVE_RANGE runs on
+ * a thread of its own, so later commands may be acknowledged before it.
+ *
+ * Connections on the admin port that start with a MIGRATE line come from
+ * another server moving ranges here and are handed to RangeMigration.
+ */
+public class ECSCommandHandler implements Runnable {
+    private Socket socket;
+    private KVServer server;
+    private BufferedReader input;
+    private PrintWriter output;
+
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    // Migrations take as long as the data does, they must not hold up heartbeats and other commands
+    private static final ExecutorService MIGRATIONS = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "range-migration");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public ECSCommandHandler(Socket socket, KVServer server, InputStream input) throws IOException {
+        this.socket = socket;
+        this.server = server;
+        this.input = new BufferedReader(new InputStreamReader(input));
+        this.output = new PrintWriter(socket.getOutputStream(), true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            String line = input.readLine();
+            if (line != null && line.startsWith(RangeMigration.HELLO + " ")) {
+                // Another server streaming ranges to us, not the ECS
+                RangeMigration.receive(line, input, output, server);
+                return;
+            }
+            while (line != null) {
+                handleLine(line);
+                line = input.readLine();
+            }
+            LOGGER.info("ECS closed the control channel.");
+        } catch (IOException e) {
+            LOGGER.log(Level.ERROR, "Control channel to ECS lost", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.ERROR, "Error closing control channel socket", e);
+            }
+        }
+    }
+
+    private void handleLine(final String line) {
+        final String[] parts = line.split(" ", 4);
+        if (parts.length < 3 || !ECSCommand.SECRET_TOKEN.equals(parts[0])) {
+            LOGGER.warn("Ignoring malformed ECS command: " + line);
+            return;
+        }
+        if (ECSCommand.MOVE_RANGE.name().equals(parts[2])) {
+            MIGRATIONS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(line, parts);
+                }
+            });
+        } else {
+            execute(line, parts);
+        }
+    }
+
+    private void execute(String line, String[] parts) {
+        String id = parts[1];
+        String args = parts.length > 3 ? parts[3] : null;
+        String reply;
+        try {
+            String payload = server.handleECSCommand(ECSCommand.valueOf(parts[2]), args);
+            reply = ECSCommand.ACK + " " + id + " " + ECSCommand.OK + (payload != null && !payload.isEmpty() ? " " + payload : "");
+        } catch (Exception e) {
+            LOGGER.log(Level.ERROR, "Error executing ECS command: " + line, e);
+            reply = ECSCommand.ACK + " " + id + " " + ECSCommand.ERROR + " " + e.getMessage();
+        }
+        synchronized (output) {
+            output.println(reply);
+        }
+    }
+}
@@ -7,7 +7,14 @@ import java.net.*;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,8 +24,15 @@ import java.security.NoSuchAlgorithmException;
 import java.math.BigInteger;
 
 import shared.messages.KVMessage;
+import shared.messages.SimpleKVBatch;
 import shared.messages.SimpleKVMessage;
 
+import ecs.ECSCommand;
+import ecs.HashRangeSet;
+import ecs.RingDelta;
+import ecs.RingHistory;
+import ecs.VersionedRing;
+
 import app_kvServer.ClientHandler;
 
 
@@ -42,6 +56,11 @@ public class KVServer implements IKVServer {
 
 	private ServerSocket serverSocket;
 	private int port;
+	private ServerSocket adminServerSocket; // ECS control traffic, separate from the client data port
+	private int adminPort; // 0 picks a free port, announced to the ECS in the ALIVE message
+	private final int weight; // share of the hash ring relative to other servers, announced in the ALIVE message
+	private static final long HEAP_PER_WEIGHT_UNIT = 256L * 1024 * 1024;
+	private static final int MAX_WEIGHT = 64;
 	private boolean running;
 	private Set<ClientHandler> activeClientHandlers;
 	private List<Thread> clientHandlerThreads;
@@ -55,20 +74,55 @@ public class KVServer implements IKVServer {
 	private IKVServer.CacheStrategy strategy;
 	private static final Logger LOGGER = Logger.getLogger(KVServer.class.getName());
 
-	private static final String ECS_SECRET_TOKEN = "secret";
-
 	private String serverName;
 	private String[] keyRange = new String[2]; // ["lowHashValue", "highHashValue"]
-	private String metadata; // Consider using a more complex structure if needed
+	private volatile HashRangeSet hashRanges; // every range from SET_CONFIG, parsed once
+	private final Map<String, Integer> migrationOffsets = new ConcurrentHashMap<String, Integer>();
+	// Ranges being moved away while still writable, one migration per target, ranges never overlap
+	private final List<OnlineMigration> outgoing = new CopyOnWriteArrayList<OnlineMigration>();
+	// Client writes hold the read lock, starting or ending a migration the write lock, so no write slips past either
+	private final ReadWriteLock migrationGate = new ReentrantReadWriteLock();
+	private final Replicator replicator = new Replicator(this, migrationGate); // copies owned keys to the next servers on the ring
+	private volatile String metadata; // Consider using a more complex structure if needed
+	private volatile long metadataEpoch = 0;
+	private static final int METADATA_HISTORY = 16; // ring versions kept to send clients deltas from
+	private final RingHistory ringHistory = new RingHistory(METADATA_HISTORY);
+	private VersionedRing preparedRing; // waiting for COMMIT_CONFIG with preparedRanges, guarded by this
+	private String[] preparedRanges;
 	private volatile boolean writeLock = false;
+	private volatile HashRangeSet lockedRanges; // writes refused only for these ranges, null if none
+	private volatile long writeLockSince;
+	private volatile long averageWriteLockMs = 100;
+	private static final long MIN_UNLOCK_HINT_MS = 10;
+
+	// Client connection tuning, see -it / -ka / -nd
+	private static final long REAPER_INTERVAL_MS = 1000;
+	private volatile long idleTimeoutMs = 5 * 60 * 1000; // 0 disables the idle reaper
+	private volatile boolean tcpKeepAlive = true;
+	private volatile boolean tcpNoDelay = true;
+	private ScheduledExecutorService idleReaper;
 
 
 		
 	public KVServer(int port, int cacheSize, String strategy, String name) {
+		this(port, cacheSize, strategy, name, 0);
+	}
+
+	public KVServer(int port, int cacheSize, String strategy, String name, int adminPort) {
+		this(port, cacheSize, strategy, name, adminPort, 1);
+	}
+
+	/**
+	 * @param weight capacity relative to other servers, the ECS gives the
+	 *        server that many times the tokens on the hash ring
+	 */
+	public KVServer(int port, int cacheSize, String strategy, String name, int adminPort, int weight) {
 
 		this.serverName = "localhost:" + Integer.toString(port);
 		
 		this.port = port;
+		this.adminPort = adminPort;
+		this.weight = Math.max(1, Math.min(MAX_WEIGHT, weight));
 		this.cacheSize = cacheSize;
 		this.strategy = IKVServer.CacheStrategy.valueOf(strategy.toUpperCase());
 
@@ -151,22 +205,130 @@ public class KVServer implements IKVServer {
 		// TODO: Parse and apply the new metadata as needed
 	}
 
+	public void updateMetadata(long epoch, String newMetadata) {
+		ringHistory.add(VersionedRing.parse(newMetadata, epoch));
+		this.metadata = newMetadata;
+		this.metadataEpoch = epoch;
+	}
+
+	/**
+	 * @return the ring changes a client at the given epoch is missing, a full
+	 *         snapshot if that version is no longer kept, null before the first metadata
+	 */
+	public RingDelta metadataSince(long epoch) {
+		return ringHistory.since(epoch);
+	}
+
+	/**
+	 * @return the version of the metadata, stamped on every client response
+	 */
+	public long getMetadataEpoch() {
+		return metadataEpoch;
+	}
+
 	public String keyrange() {
 		return metadata;
 	}
 
-	public void setWriteLock(boolean lock) {
+	public synchronized void setWriteLock(boolean lock) {
+		trackLockDuration(writeLock || lockedRanges != null, lock || lockedRanges != null);
 		this.writeLock = lock;
 	}
 
+	/**
+	 * Refuses writes only for keys in the given ranges, e.g. the ranges being
+	 * moved during a rebalance, while the rest of the keyspace stays writable.
+	 * @param ranges the ranges to lock, null to unlock them
+	 */
+	public synchronized void setLockedRanges(HashRangeSet ranges) {
+		trackLockDuration(writeLock || lockedRanges != null, writeLock || ranges != null);
+		this.lockedRanges = ranges;
+	}
+
+	private void trackLockDuration(boolean wasLocked, boolean locked) {
+		long now = System.currentTimeMillis();
+		if (locked && !wasLocked) {
+			writeLockSince = now;
+		} else if (!locked && wasLocked) {
+			// Moving average of how long rebalances keep writes locked
+			averageWriteLockMs = (averageWriteLockMs * 3 + (now - writeLockSince)) / 4;
+		}
+	}
+
+	/**
+	 * @return estimate in ms until the write lock clears, sent to clients with SERVER_WRITE_LOCK
+	 */
+	public long getUnlockHintMs() {
+		long remaining = averageWriteLockMs - (System.currentTimeMillis() - writeLockSince);
+		return Math.max(MIN_UNLOCK_HINT_MS, remaining);
+	}
+
 	// Use this method to check if write operations are allowed
 	public boolean canWrite() {
 		return !writeLock;
 	}
 
+	/**
+	 * @return false if the whole server or the range holding the key is write locked
+	 */
+	public boolean canWrite(String key) {
+		if (writeLock) {
+			return false;
+		}
+		HashRangeSet locked = lockedRanges;
+		return locked == null || key == null || !locked.containsKey(key);
+	}
+
+	public void setIdleTimeout(long idleTimeoutMs) {
+		this.idleTimeoutMs = idleTimeoutMs;
+	}
+
+	public void setTcpKeepAlive(boolean tcpKeepAlive) {
+		this.tcpKeepAlive = tcpKeepAlive;
+	}
+
+	public String getServerName() {
+		return serverName;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Weight for "-w auto": one unit per 256 MB of maximum heap, since the
+	 * storage is held in memory.
+	 */
+	public static int weightFromHeap() {
+		long units = Runtime.getRuntime().maxMemory() / HEAP_PER_WEIGHT_UNIT;
+		return (int) Math.max(1, Math.min(MAX_WEIGHT, units));
+	}
+
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
 	public void setKeyRange(String low, String high) {
-		this.keyRange[0] = low;
-		this.keyRange[1] = high;
+		setKeyRanges(new String[]{low, high});
+	}
+
+	/**
+	 * @param bounds "low high" pairs, one per virtual node of this server
+	 */
+	public void setKeyRanges(String[] bounds) {
+		HashRangeSet ranges = HashRangeSet.parse(bounds);
+		if (ranges != null) {
+			this.keyRange[0] = bounds[0];
+			this.keyRange[1] = bounds[1];
+		}
+		this.hashRanges = ranges;
+	}
+
+	/**
+	 * @return the assigned ranges with their bounds pre-parsed, null until the ECS configures them
+	 */
+	public HashRangeSet getHashRanges() {
+		return hashRanges;
 	}
 
 	public void start() {
@@ -271,40 +433,97 @@ public class KVServer implements IKVServer {
 		// TODO Auto-generated method stub
 		// LOGGER.info("Attempting to put key: " + key + ", value: " + value);
 		try{
+			if (!canWrite(key)) {
+				throw new IllegalStateException("Server is currently under write lock.");
+			}
+			Replicator.Acks acks = applyClientWrite(key, value);
+			saveDataToStorage(); 
+			acks.await();
+			System.out.println("HELLO - KVServer has saved...2");
+		} catch (Exception e){
+			LOGGER.severe("Error while putting key: " + key+ " with value: "+ value); 
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+			throw e; 
+		}
+	}
+
+	/**
+	 * Applies a batch of puts (null value = delete) and persists the storage
+	 * file once for the whole batch instead of once per key.
+	 */
+	public void putKVBatch(Map<String, String> entries) throws Exception {
+		try {
 			if (!canWrite()) {
 				throw new IllegalStateException("Server is currently under write lock.");
 			}
+			List<Replicator.Acks> acks = new ArrayList<Replicator.Acks>(entries.size());
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				acks.add(applyClientWrite(entry.getKey(), entry.getValue()));
+			}
+			saveDataToStorage();
+			for (Replicator.Acks ack : acks) {
+				ack.await();
+			}
+			LOGGER.info("Batch of " + entries.size() + " updates applied");
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Error while applying batch of " + entries.size() + " updates", e);
+			throw e;
+		}
+	}
 
-			if (value == null || "null".equals(value)) {
-				if (storage.containsKey(key)) {
-					storage.remove(key);
-					LOGGER.info("Key removed from storage: " + key);
-				}
-				if (cache != null && cache.containsKey(key)) {
-					cache.remove(key);
-					if (strategy == CacheStrategy.LFU && accessFrequency.containsKey(key)) {
-						accessFrequency.remove(key);
-						lfuQueue.remove(key);
+	/* Writes to a range that is being moved are captured or forwarded to its new owner, every write is sent on to the key's replicas */
+	private Replicator.Acks applyClientWrite(String key, String value) throws IOException {
+		migrationGate.readLock().lock();
+		try {
+			synchronized (replicator.orderOf(key)) {
+				OnlineMigration moving = null;
+				for (OnlineMigration migration : outgoing) {
+					if (migration.covers(key)) {
+						moving = migration;
+						break;
 					}
-					LOGGER.info("Key removed from cache: " + key);
 				}
-				return; 
+				if (moving != null) {
+					moving.write(key, value);
+				} else {
+					applyPut(key, value);
+				}
+				return replicator.replicate(key, value);
 			}
+		} finally {
+			migrationGate.readLock().unlock();
+		}
+	}
+
+	void applyLocal(String key, String value) {
+		applyPut(key, value);
+	}
 
-			storage.put(key, value); // if key already exists, get new val, will be updated 
-									// if key not available, will be put in. 
-			System.out.println("HELLO - KVSErver has saved...1");
-			LOGGER.info("Storage updated for key: " + key);
-			if (cache != null) {
-				updateCache(key, value);  
-				LOGGER.info("Cache updated for key: " + key);
+	/* Updates storage and cache in memory, persisting is left to the caller */
+	private void applyPut(String key, String value) {
+		if (value == null || "null".equals(value)) {
+			if (storage.containsKey(key)) {
+				storage.remove(key);
+				LOGGER.info("Key removed from storage: " + key);
 			}
-			saveDataToStorage(); 
-			System.out.println("HELLO - KVServer has saved...2");
-		} catch (Exception e){
-			LOGGER.severe("Error while putting key: " + key+ " with value: "+ value); 
-			LOGGER.log(Level.SEVERE, e.getMessage(), e);
-			throw e; 
+			if (cache != null && cache.containsKey(key)) {
+				cache.remove(key);
+				if (strategy == CacheStrategy.LFU && accessFrequency.containsKey(key)) {
+					accessFrequency.remove(key);
+					lfuQueue.remove(key);
+				}
+				LOGGER.info("Key removed from cache: " + key);
+			}
+			return; 
+		}
+
+		storage.put(key, value); // if key already exists, get new val, will be updated 
+								// if key not available, will be put in. 
+		System.out.println("HELLO - KVSErver has saved...1");
+		LOGGER.info("Storage updated for key: " + key);
+		if (cache != null) {
+			updateCache(key, value);  
+			LOGGER.info("Cache updated for key: " + key);
 		}
 	}
 
@@ -428,6 +647,9 @@ public class KVServer implements IKVServer {
 				// Directly handle ECS command or initiate a client handler
 				handleIncomingConnection(clientSocket);
 			} catch (IOException e) {
+				if (serverSocket.isClosed()) {
+					break; // killed, possibly before the running flag was raised
+				}
 				LOGGER.log(Level.SEVERE, "Error accepting client connection", e);
 			}
 		}
@@ -437,64 +659,338 @@ public class KVServer implements IKVServer {
 	
 	private void handleIncomingConnection(Socket clientSocket) {
 		try {
-			int bufferSize = 2048;
-			PushbackInputStream in = new PushbackInputStream(clientSocket.getInputStream(), bufferSize);
-			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-			String command = reader.readLine();
+			clientSocket.setKeepAlive(tcpKeepAlive); // lets the OS detect peers that vanished without a FIN
+			clientSocket.setTcpNoDelay(tcpNoDelay);
+			// The data port only serves KVclients, ECS commands arrive on the admin port
+			LOGGER.info("Handling client connection");
+			// System.out.println("KVServer, keyRange: " + keyRange); 
+			System.out.println("KVServer, keyRange: " + Arrays.toString(keyRange));
+			System.out.println("KVServer, server: " + this); 
+			ClientHandler handler = new ClientHandler(clientSocket, this, clientSocket.getInputStream()); 
+			activeClientHandlers.add(handler);
+			Thread handlerThread = new Thread(handler);
+			clientHandlerThreads.add(handlerThread);
+			handlerThread.start();
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Error handling incoming connection", e);
+		}
+	}
 
-			if (command != null){
+	/* Called by a ClientHandler when its connection ends */
+	void removeClientHandler(ClientHandler handler, Thread handlerThread) {
+		activeClientHandlers.remove(handler);
+		clientHandlerThreads.remove(handlerThread);
+	}
 
-				System.out.println("RECIEVED COMMAND: " + command);
-				
-				byte[] bytesToUnread = (command + "\r\n").getBytes("UTF-8"); // Convert the command back to bytes and push them back to the stream
-				in.unread(bytesToUnread);
-		
-				if (command.startsWith(ECS_SECRET_TOKEN)) {
-					handleECSCommand(command);
-				} 
-				else {
-					// Handle non-ECS connections, aka KVclients
-					LOGGER.info("Handling client connection");
-					// System.out.println("KVServer, keyRange: " + keyRange); 
-					System.out.println("KVServer, keyRange: " + Arrays.toString(keyRange));
-					System.out.println("KVServer, server: " + this); 
-					ClientHandler handler = new ClientHandler(clientSocket, this, keyRange, in); 
-					activeClientHandlers.add(handler);
-					Thread handlerThread = new Thread(handler);
-					clientHandlerThreads.add(handlerThread);
-					handlerThread.start();
+	/* Closes client connections that have been idle for longer than the idle timeout */
+	private void reapIdleConnections() {
+		long timeout = idleTimeoutMs;
+		if (timeout <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		List<ClientHandler> idle = new ArrayList<ClientHandler>();
+		synchronized (activeClientHandlers) {
+			for (ClientHandler handler : activeClientHandlers) {
+				if (handler.isIdle(now, timeout)) {
+					idle.add(handler);
 				}
 			}
-		} catch (Exception e) {
-			LOGGER.log(Level.SEVERE, "Error handling incoming connection", e);
+		}
+		for (ClientHandler handler : idle) {
+			LOGGER.info("Closing client connection idle for more than " + timeout + " ms");
+			handler.close(); // the handler removes itself once its thread exits
 		}
 	}
+
+	private void startIdleReaper() {
+		idleReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "idle-reaper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		idleReaper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reapIdleConnections();
+			}
+		}, REAPER_INTERVAL_MS, REAPER_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private void stopIdleReaper() {
+		if (idleReaper != null) {
+			idleReaper.shutdownNow();
+		}
+	}
+
+	/* Accepts ECS control channels on the admin port until the server stops */
+	private void runAdminListener() {
+		LOGGER.info("KV Server admin listener on port " + getAdminPort());
+		while (isRunning() && !adminServerSocket.isClosed()) {
+			try {
+				Socket ecsSocket = adminServerSocket.accept();
+				LOGGER.info("ECS control connection from: " + ecsSocket.getInetAddress());
+				Thread controlThread = new Thread(new ECSCommandHandler(ecsSocket, this, ecsSocket.getInputStream()), "ecs-control");
+				controlThread.setDaemon(true);
+				controlThread.start();
+			} catch (IOException e) {
+				if (isRunning() && !adminServerSocket.isClosed()) {
+					LOGGER.log(Level.SEVERE, "Error accepting ECS connection", e);
+				}
+			}
+		}
+	}
+
+	public int getAdminPort() {
+		if (adminServerSocket != null && !adminServerSocket.isClosed()) {
+			return adminServerSocket.getLocalPort();
+		}
+		return -1;
+	}
 	
 	
-	private void handleECSCommand(String command) {
-		String[] parts = command.split(" ");
-		switch (parts[1]) {
-			case "SET_CONFIG":
-				setKeyRange(parts[2], parts[3]);
-				LOGGER.info("Key range updated: " + Arrays.toString(keyRange));
-				break;
-			case "SET_METADATA":
-				updateMetadata(parts[2]);
-				LOGGER.info("Metadata updated.");
-				break;
-			case "ECS_REQUEST_STORAGE_HANDOFF":
-				System.out.println("KVServer, ECS_REQ_STG_HANDOFF:"+command); 
-				// Trigger storage handoff procedure
-				handOffStorageToECS("NEW_SERVER");
-				break;
-			case "SET_WRITE_LOCK":
-				setWriteLock(Boolean.parseBoolean(parts[2]));
-				LOGGER.info("Write lock set to: " + parts[2]);
-				break;
+	/**
+	 * Executes a command received on the ECS control channel.
+	 * @return payload for the acknowledgement, null if there is none
+	 */
+	public String handleECSCommand(ECSCommand command, String args) {
+		switch (command) {
+			case SET_CONFIG: {
+				setKeyRanges(args.trim().split(" "));
+				LOGGER.info("Key ranges updated: " + args);
+				return null;
+			}
+			case SET_METADATA: {
+				// "<epoch> <metadata>"
+				String[] parts = args.split(" ", 2);
+				updateMetadata(Long.parseLong(parts[0]), parts.length > 1 ? parts[1] : "");
+				LOGGER.info("Metadata updated to epoch " + parts[0]);
+				return null;
+			}
+			case PREPARE_CONFIG:
+				prepareConfig(args.trim().split(" "));
+				return null;
+			case COMMIT_CONFIG:
+				commitConfig(Long.parseLong(args.trim()));
+				LOGGER.info("Configuration of epoch " + args.trim() + " committed");
+				return null;
+			case ECS_REQUEST_STORAGE_HANDOFF:
+				System.out.println("KVServer, ECS_REQ_STG_HANDOFF"); 
+				// Storage goes back in the acknowledgement instead of over a new socket
+				return serializeStorage();
+			case SET_WRITE_LOCK:
+				setWriteLock(Boolean.parseBoolean(args));
+				LOGGER.info("Write lock set to: " + args);
+				return null;
+			case LOCK_RANGES:
+				setLockedRanges(args != null ? HashRangeSet.parse(args.trim().split(" ")) : null);
+				LOGGER.info("Locked ranges set to: " + args);
+				return null;
+			case PUT_KV_BATCH:
+				applyMigrationBatch(args);
+				return null;
+			case MOVE_RANGE:
+				try {
+					return moveRanges(args);
+				} catch (IOException e) {
+					throw new IllegalStateException(e.getMessage(), e);
+				}
+			case DROP_RANGE:
+				return dropRanges(args);
+			case ABORT_MOVE:
+				return abortMoves(args);
+			case PING:
+				return null;
+			case SET_REPLICATION:
+				replicator.configure(args);
+				LOGGER.info("Replication set to: " + args);
+				return null;
+			case PUT_REPLICAS:
+				replicator.applyCopies(args);
+				return null;
 			default:
-				LOGGER.warning("Received unknown ECS command: " + command);
-				break;
+				throw new IllegalArgumentException("Unknown ECS command: " + command);
+		}
+	}
+
+	/* "epoch ringDelta low high [low high ...]", applied to a copy now so the commit cannot fail on it */
+	private synchronized void prepareConfig(String[] config) {
+		if (config.length < 4) {
+			throw new IllegalArgumentException("PREPARE_CONFIG needs an epoch, a ring delta and at least one range");
+		}
+		long epoch = Long.parseLong(config[0]);
+		VersionedRing current = ringHistory.current();
+		VersionedRing ring = (current != null ? current : VersionedRing.EMPTY).apply(RingDelta.decode(config[1]));
+		if (ring.getEpoch() != epoch) {
+			throw new IllegalArgumentException("Ring delta leads to epoch " + ring.getEpoch() + ", not " + epoch);
+		}
+		String[] ranges = Arrays.copyOfRange(config, 2, config.length);
+		HashRangeSet.parse(ranges);
+		preparedRing = ring;
+		preparedRanges = ranges;
+	}
+
+	/* Switches ranges and metadata back to back, every node does so on the same broadcast */
+	private synchronized void commitConfig(long epoch) {
+		if (preparedRing == null || preparedRing.getEpoch() != epoch) {
+			throw new IllegalStateException("No configuration prepared for epoch " + epoch);
 		}
+		VersionedRing previous = ringHistory.current();
+		setKeyRanges(preparedRanges);
+		ringHistory.add(preparedRing);
+		this.metadata = preparedRing.toMetadata();
+		this.metadataEpoch = epoch;
+		replicator.ringChanged(previous, preparedRing);
+		preparedRing = null;
+		preparedRanges = null;
+	}
+
+	/* The committed ring, null before the first configuration */
+	VersionedRing currentRing() {
+		return ringHistory.current();
+	}
+
+	/**
+	 * @return true if the key belongs to another server and this one holds a copy of it
+	 */
+	public boolean isReplicaOf(String key) {
+		return replicator.isReplicaOf(key);
+	}
+
+	/* Records relayed from a storage handoff, the storage file is rewritten once for all of them */
+	private void applyMigrationBatch(String args) {
+		Map<String, String> records = new LinkedHashMap<String, String>();
+		for (String[] entry : SimpleKVBatch.decode(args != null ? args : "", 2)) {
+			records.put(entry[0], entry[1]);
+		}
+		applyMigratedRecords(records);
+		saveDataToStorage();
+	}
+
+	/* "host adminPort low high [low high ...]" */
+	private String moveRanges(String args) throws IOException {
+		String[] parts = args.trim().split(" ");
+		if (parts.length < 4) {
+			throw new IllegalArgumentException("MOVE_RANGE needs a target and at least one range");
+		}
+		HashRangeSet ranges = HashRangeSet.parse(Arrays.copyOfRange(parts, 2, parts.length));
+		// Each transfer of the migration gets its own id, a repeated MOVE_RANGE starts over on a new snapshot
+		OnlineMigration migration = new OnlineMigration(this, ranges, parts[0], Integer.parseInt(parts[1]), serverName);
+		startOutgoingMigration(migration);
+		try {
+			return Integer.toString(migration.run());
+		} catch (IOException e) {
+			migration.abort();
+			endOutgoingMigrations(Collections.singletonList(migration));
+			throw e;
+		}
+	}
+
+	/* Starts capturing writes for the migration once no client write is in progress */
+	private void startOutgoingMigration(OnlineMigration migration) {
+		migrationGate.writeLock().lock();
+		try {
+			for (OnlineMigration other : outgoing) {
+				if (other.overlaps(migration)) {
+					throw new IllegalStateException("Another migration of these ranges is in progress");
+				}
+			}
+			outgoing.add(migration);
+		} finally {
+			migrationGate.writeLock().unlock();
+		}
+	}
+
+	private void endOutgoingMigrations(Collection<OnlineMigration> migrations) {
+		migrationGate.writeLock().lock();
+		try {
+			outgoing.removeAll(migrations);
+		} finally {
+			migrationGate.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a snapshot of the stored records whose keys fall into the ranges
+	 */
+	Map<String, String> entriesIn(HashRangeSet ranges) {
+		Map<String, String> entries = new HashMap<String, String>();
+		for (Map.Entry<String, String> entry : storage.entrySet()) {
+			if (ranges.containsKey(entry.getKey())) {
+				entries.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return entries;
+	}
+
+	List<String> storedKeys() {
+		return new ArrayList<String>(storage.keySet());
+	}
+
+	String storedValue(String key) {
+		return storage.get(key);
+	}
+
+	/* Records streamed in by another server bypass the write lock, persisting is left to the caller */
+	void applyMigratedRecords(Map<String, String> records) {
+		for (Map.Entry<String, String> record : records.entrySet()) {
+			applyPut(record.getKey(), record.getValue());
+		}
+	}
+
+	void persistStorage() {
+		saveDataToStorage();
+	}
+
+	/* Records applied so far per incoming transfer, so a broken transfer can resume */
+	Map<String, Integer> getMigrationOffsets() {
+		return migrationOffsets;
+	}
+
+	/* Forgets records that were moved to another server once it owns them */
+	private String dropRanges(String args) {
+		HashRangeSet ranges = HashRangeSet.parse(args.trim().split(" "));
+		// The new owners of these ranges are configured, stop forwarding to them
+		List<OnlineMigration> finished = outgoingMigrationsOf(ranges);
+		endOutgoingMigrations(finished);
+		for (OnlineMigration migration : finished) {
+			migration.finish();
+		}
+		int dropped = 0;
+		for (String key : entriesIn(ranges).keySet()) {
+			if (replicator.isReplicaOf(key)) {
+				continue; // moved away, but still copied here
+			}
+			applyPut(key, null);
+			dropped++;
+		}
+		saveDataToStorage();
+		LOGGER.info("Dropped " + dropped + " records after migration");
+		return Integer.toString(dropped);
+	}
+
+	/* The ECS no longer moves these ranges, their records stay here and nothing is forwarded any more */
+	private String abortMoves(String args) {
+		List<OnlineMigration> aborted = outgoingMigrationsOf(HashRangeSet.parse(args.trim().split(" ")));
+		endOutgoingMigrations(aborted);
+		for (OnlineMigration migration : aborted) {
+			migration.abort();
+		}
+		LOGGER.info("Aborted " + aborted.size() + " migrations of " + args);
+		return Integer.toString(aborted.size());
+	}
+
+	private List<OnlineMigration> outgoingMigrationsOf(HashRangeSet ranges) {
+		List<OnlineMigration> migrations = new ArrayList<OnlineMigration>();
+		for (OnlineMigration migration : outgoing) {
+			if (migration.overlaps(ranges)) {
+				migrations.add(migration);
+			}
+		}
+		return migrations;
 	}
 	
 
@@ -615,12 +1111,15 @@ public class KVServer implements IKVServer {
 	// 	}
 	// }
 
-	public void handOffStorageToECS(String occasion) {
-		System.out.println("KVServer, handOffStorageToECS");
-	
+	/* Serializes the records this server owns as key=value;key=value */
+	private String serializeStorage() {
 		StringBuilder sb = new StringBuilder();
+		HashRangeSet owned = hashRanges;
 		// Replace lambda expression with traditional for-loop for Java 7 compatibility
 		for (Map.Entry<String, String> entry : storage.entrySet()) {
+			if (owned != null && !owned.containsKey(entry.getKey())) {
+				continue; // a copy of another server's key, its owner has it
+			}
 			sb.append(entry.getKey()).append("=").append(entry.getValue()).append(";");
 		}
 	
@@ -628,8 +1127,14 @@ public class KVServer implements IKVServer {
 		if (sb.length() > 0) {
 			sb.setLength(sb.length() - 1);
 		}
+		return sb.toString();
+	}
+
+	public void handOffStorageToECS(String occasion) {
+		System.out.println("KVServer, handOffStorageToECS");
 	
-		String serializedStorage = sb.toString();
+		String serializedStorage = serializeStorage();
+		StringBuilder sb = new StringBuilder(serializedStorage);
 	
 		// Determine the message prefix based on the occasion
 		String messagePrefix = (occasion.equals("DEAD_SERVER")) ? "STORAGE_HANDOFF " : "ECS_STORAGE_HANDOFF ";
@@ -673,16 +1178,40 @@ public class KVServer implements IKVServer {
 				System.out.println("stopping server, handed off storaget to ECS");
 				serverSocket.close();
 			}
+			closeAdminSocket();
+			stopIdleReaper();
+			replicator.close();
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, "Error closing server socket", e);
 		}
 	}
 
+	private void closeAdminSocket() {
+		try {
+			if (adminServerSocket != null && !adminServerSocket.isClosed()) {
+				adminServerSocket.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Error closing admin socket", e);
+		}
+	}
+
 	private boolean initializeServer() {
         if (serverSocket == null) {
             try {
                 serverSocket = new ServerSocket(port);
-				sendMessageToECS("ALIVE " + serverName + " " + null); 
+				adminServerSocket = new ServerSocket(adminPort);
+				running = true;
+				Thread adminThread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						runAdminListener();
+					}
+				}, "admin-listener");
+				adminThread.setDaemon(true);
+				adminThread.start();
+				startIdleReaper();
+				sendMessageToECS("ALIVE " + serverName + " " + getAdminPort() + " " + weight); 
                 return true;
             } catch (IOException e) {
                 LOGGER.log(Level.SEVERE, "Error! Cannot open server socket:", e);
@@ -718,9 +1247,12 @@ public class KVServer implements IKVServer {
 			if (serverSocket != null && !serverSocket.isClosed()) {
 				serverSocket.close();
 			}
+			closeAdminSocket();
+			stopIdleReaper();
+			replicator.close();
 
 			// Wait for client handler threads to complete
-			for (Thread thread : clientHandlerThreads) {
+			for (Thread thread : new ArrayList<Thread>(clientHandlerThreads)) {
 				try {
 					thread.join(); // Wait for the thread to finish
 				} catch (InterruptedException e) {
@@ -742,6 +1274,9 @@ public class KVServer implements IKVServer {
 			if(serverSocket != null && !serverSocket.isClosed()){
 				serverSocket.close(); 
 			}
+			closeAdminSocket();
+			stopIdleReaper();
+			replicator.close();
 		// Immediately terminate any ongoing processing
         // This might involve interrupting active threads or shutting down a thread pool
 
@@ -755,6 +1290,11 @@ public class KVServer implements IKVServer {
 
 	public static void main(String[] args) {
 		int port = 50000; // Default port
+		int adminPort = 0; // Default: any free port, announced to the ECS
+		int weight = 1; // Default: equal share of the ring
+		long idleTimeout = 5 * 60 * 1000; // Default idle timeout in ms, 0 disables
+		boolean keepAlive = true;
+		boolean noDelay = true;
 		String name = "Node"; 
 		int cacheSize = 10; // Example default cache size
 		String strategy = "FIFO"; // Default strategy
@@ -771,6 +1311,24 @@ public class KVServer implements IKVServer {
 				case "-p":
 					if (i + 1 < args.length) port = Integer.parseInt(args[++i]);
 					break;
+				case "-it":
+					if (i + 1 < args.length) idleTimeout = Long.parseLong(args[++i]);
+					break;
+				case "-ka":
+					if (i + 1 < args.length) keepAlive = Boolean.parseBoolean(args[++i]);
+					break;
+				case "-nd":
+					if (i + 1 < args.length) noDelay = Boolean.parseBoolean(args[++i]);
+					break;
+				case "-ap":
+					if (i + 1 < args.length) adminPort = Integer.parseInt(args[++i]);
+					break;
+				case "-w":
+					if (i + 1 < args.length) {
+						String w = args[++i];
+						weight = "auto".equals(w) ? weightFromHeap() : Integer.parseInt(w);
+					}
+					break;
 				case "-a":
 					if (i + 1 < args.length) address = args[++i];
 					break;
@@ -785,7 +1343,7 @@ public class KVServer implements IKVServer {
 					break;
 				case "-h":
 					// Display help information
-					System.out.println("Usage: java -jar KVServer.jar [-n name] [-p port] [-a address] [-d storageDir] [-l logFilePath] [-ll logLevel]");
+					System.out.println("Usage: java -jar KVServer.jar [-n name] [-p port] [-ap adminPort] [-w weight|auto] [-it idleTimeoutMs] [-ka keepAlive] [-nd noDelay] [-a address] [-d storageDir] [-l logFilePath] [-ll logLevel]");
 					System.exit(0);
 					break;
 			}
@@ -802,7 +1360,10 @@ public class KVServer implements IKVServer {
 		}
 
 		// Initialize and start the server
-		KVServer server = new KVServer(port, cacheSize, strategy, name);
+		KVServer server = new KVServer(port, cacheSize, strategy, name, adminPort, weight);
+		server.setIdleTimeout(idleTimeout);
+		server.setTcpKeepAlive(keepAlive);
+		server.setTcpNoDelay(noDelay);
 		try {
 			server.setStoragePath(storageDir);
 		} catch (IOException e) {
@@ -0,0 +1,143 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import ecs.HashRangeSet;
+
+/**
+ * Moves ranges to another server while this server keeps accepting writes
+ * to them.
+ *
+ * Writes to the ranges are captured from the moment the migration starts.
+ * After the snapshot has been streamed, the captured writes are sent in
+ * catch-up rounds until few are left. Handover then sends the last ones over
+ * a link and, from then on, forwards every write to the target before it is
+ * applied here. Both servers stay in sync until the ECS has switched
+ * ownership and ends the migration with DROP_RANGE; no write to the moving
+ * ranges is refused at any point.
+ */
+class OnlineMigration {
+
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    private static final int MAX_CATCH_UP_ROUNDS = 5;
+    private static final int HANDOVER_THRESHOLD = 256; // captured writes sent while writes wait
+
+    private final KVServer server;
+    private final HashRangeSet ranges;
+    private final String host;
+    private final int adminPort;
+    private final String transferId; // prefix of the ids of its transfers, each of which is named anew
+
+    /* guarded by this: writes captured since the snapshot, the last value per key (null deletes) */
+    private Map<String, String> captured = new LinkedHashMap<String, String>();
+    private RangeMigration.Link link; // set at handover, writes are forwarded from then on
+
+    OnlineMigration(KVServer server, HashRangeSet ranges, String host, int adminPort, String transferId) {
+        this.server = server;
+        this.ranges = ranges;
+        this.host = host;
+        this.adminPort = adminPort;
+        this.transferId = transferId;
+    }
+
+    boolean covers(String key) {
+        return ranges.containsKey(key);
+    }
+
+    boolean overlaps(OnlineMigration other) {
+        return overlaps(other.ranges);
+    }
+
+    boolean overlaps(HashRangeSet other) {
+        return ranges.overlaps(other);
+    }
+
+    /**
+     * Applies a client write to a moving key, capturing it or, after
+     * handover, forwarding it to the target first.
+     */
+    synchronized void write(String key, String value) throws IOException {
+        if (link != null) {
+            link.forward(key, value);
+        } else {
+            captured.remove(key); // keep the order of the latest writes
+            captured.put(key, value);
+        }
+        server.applyLocal(key, value);
+    }
+
+    /**
+     * Streams the snapshot and the writes made meanwhile, then hands over.
+     * @return number of records sent
+     */
+    int run() throws IOException {
+        int sent = RangeMigration.send(server, ranges, host, adminPort, transferId);
+        for (int round = 0; round < MAX_CATCH_UP_ROUNDS; round++) {
+            Map<String, String> delta = drain();
+            if (delta.size() <= HANDOVER_THRESHOLD) {
+                restore(delta);
+                break;
+            }
+            sent += RangeMigration.send(server.getServerName(), delta, host, adminPort, transferId + "-" + round);
+        }
+
+        RangeMigration.Link forwarding = RangeMigration.Link.open(server.getServerName(), host, adminPort, transferId + "-fwd");
+        synchronized (this) {
+            // Writes to the ranges wait here for the last few captured ones
+            try {
+                for (Map.Entry<String, String> write : captured.entrySet()) {
+                    forwarding.forward(write.getKey(), write.getValue());
+                }
+            } catch (IOException e) {
+                forwarding.abort();
+                throw e;
+            }
+            sent += captured.size();
+            captured.clear();
+            link = forwarding;
+        }
+        LOGGER.info("Handed over " + sent + " records to " + host + ":" + adminPort + ", forwarding writes");
+        return sent;
+    }
+
+    /* Ownership has switched, stop forwarding */
+    synchronized void finish() {
+        if (link == null) {
+            return;
+        }
+        try {
+            link.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing forwarding link to " + host + ":" + adminPort, e);
+        }
+        link = null;
+    }
+
+    synchronized void abort() {
+        if (link != null) {
+            link.abort();
+            link = null;
+        }
+        captured.clear();
+    }
+
+    private synchronized Map<String, String> drain() {
+        Map<String, String> delta = captured;
+        captured = new LinkedHashMap<String, String>();
+        return delta;
+    }
+
+    /* Puts a drained delta back in front of anything captured since */
+    private synchronized void restore(Map<String, String> delta) {
+        for (Map.Entry<String, String> write : captured.entrySet()) {
+            delta.remove(write.getKey());
+            delta.put(write.getKey(), write.getValue());
+        }
+        captured = delta;
+    }
+}
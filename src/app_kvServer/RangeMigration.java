@@ -0,0 +1,419 @@
+package app_kvServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import ecs.HashRangeSet;
+import shared.messages.SimpleKVBatch;
+
+/**
+ * Moves the records of hash ranges straight from one KVServer to another,
+ * over a connection to the receiver's admin port, instead of relaying every
+ * key through the ECS.
+ *
+ * Wire format (one line each):
+ *   sender -> receiver:  MIGRATE <sender> <transferId>
+ *   receiver -> sender:  RESUME <offset>
+ *   sender -> receiver:  BATCH <offset> <crc32> <key/value fields>  (repeated)
+ *   receiver -> sender:  ACK <offset>  |  NACK <offset>
+ *   sender -> receiver:  END <records>
+ *   receiver -> sender:  DONE <records>  |  ERROR <reason>
+ *   sender -> receiver:  ABORT  (instead of END, the transfer is given up)
+ *   receiver -> sender:  DONE <records>
+ *
+ * Records are sent in key order, so an offset (the number of records the
+ * receiver has applied) names the same position on every attempt. A batch
+ * carries the offset of its first record and a CRC32 of its payload; the
+ * receiver only applies a batch that starts at its current offset and passes
+ * the checksum, and otherwise answers NACK so the sender resends from there.
+ * At most WINDOW batches are unacknowledged, so a receiver busy applying
+ * records slows the sender down instead of buffering without bound. A broken
+ * connection is retried and continues from the offset the receiver reports
+ * for the transfer. An offset only means something for the list of records
+ * it was counted in, so every transfer gets an id of its own and only its
+ * own reconnects resume; a transfer that is given up is aborted so the
+ * receiver forgets its offset.
+ */
+public class RangeMigration {
+
+    public static final String HELLO = "MIGRATE";
+    static final String RESUME = "RESUME";
+    static final String BATCH = "BATCH";
+    static final String ACK = "ACK";
+    static final String NACK = "NACK";
+    static final String END = "END";
+    static final String DONE = "DONE";
+    static final String ERROR = "ERROR";
+    static final String ABORT = "ABORT";
+
+    private static final int BATCH_CHARS = 64 * 1024;
+    private static final int WINDOW = 8; // unacknowledged batches
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MS = 200;
+    private static final int CONNECT_TIMEOUT = 5000; // ms
+    private static final int READ_TIMEOUT = 60 * 1000; // ms without an acknowledgement
+
+    private static final Logger LOGGER = Logger.getRootLogger();
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Streams every local record inside the ranges to the server listening on
+     * host:adminPort and waits until it has stored them, reconnecting and
+     * resuming if the connection breaks.
+     * @param transferId prefix of the transfer's name on the receiver
+     * @return number of records moved
+     */
+    public static int send(KVServer server, HashRangeSet ranges, String host, int adminPort, String transferId) throws IOException {
+        return send(server.getServerName(), server.entriesIn(ranges), host, adminPort, transferId);
+    }
+
+    /**
+     * Streams the given records, a null value deleting the key on the receiver.
+     * @param transferId prefix of the transfer's name on the receiver
+     * @return number of records moved
+     */
+    public static int send(String sender, Map<String, String> snapshot, String host, int adminPort, String transferId) throws IOException {
+        transferId = uniqueId(transferId); // resumed by the reconnects below, never by another call
+        List<String[]> records = new ArrayList<String[]>();
+        for (Map.Entry<String, String> record : new TreeMap<String, String>(snapshot).entrySet()) {
+            records.add(new String[]{record.getKey(), record.getValue()});
+        }
+        IOException lastError = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                LOGGER.warn("Migration to " + host + ":" + adminPort + " broke, retrying: " + lastError.getMessage());
+                sleep(RETRY_DELAY_MS * attempt);
+            }
+            try {
+                sendOnce(sender, records, host, adminPort, transferId);
+                LOGGER.info("Moved " + records.size() + " records to " + host + ":" + adminPort);
+                return records.size();
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        abort(sender, host, adminPort, transferId);
+        throw new IOException("Migration to " + host + ":" + adminPort + " failed after " + MAX_ATTEMPTS + " attempts: " + lastError.getMessage(), lastError);
+    }
+
+    /* Lets the receiver forget the offset of a transfer that will not be resumed, if it can still be reached */
+    private static void abort(String sender, String host, int adminPort, String transferId) {
+        try {
+            Socket socket = connect(host, adminPort);
+            try {
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), false);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                hello(out, in, sender, transferId);
+                reply(out, ABORT);
+                expect(in, DONE);
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not abort migration " + transferId + " on " + host + ":" + adminPort + ": " + e.getMessage());
+        }
+    }
+
+    /* "<prefix>-<nonce>", a name no earlier transfer used */
+    static String uniqueId(String prefix) {
+        return prefix + "-" + Long.toHexString(RANDOM.nextLong());
+    }
+
+    private static void sendOnce(String sender, List<String[]> records, String host, int adminPort, String transferId) throws IOException {
+        Socket socket = connect(host, adminPort);
+        try {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), false);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            int next = hello(out, in, sender, transferId);
+
+            ArrayDeque<Batch> inFlight = new ArrayDeque<Batch>();
+            while (next < records.size() || !inFlight.isEmpty()) {
+                if (next < records.size() && inFlight.size() < WINDOW) {
+                    Batch batch = Batch.of(records, next);
+                    out.println(batch.line);
+                    inFlight.add(batch);
+                    next += batch.records;
+                    continue;
+                }
+                out.flush();
+                String reply = in.readLine();
+                if (reply == null) {
+                    throw new IOException("Receiver closed the migration stream");
+                }
+                int offset = parseOffset(reply);
+                if (reply.startsWith(ACK + " ")) {
+                    while (!inFlight.isEmpty() && inFlight.peek().end() <= offset) {
+                        inFlight.poll();
+                    }
+                } else if (reply.startsWith(NACK + " ")) {
+                    // Go back to where the receiver is and resend everything after it
+                    LOGGER.warn("Batch at offset " + offset + " rejected by " + host + ":" + adminPort + ", resending");
+                    inFlight.clear();
+                    next = offset;
+                } else {
+                    throw new IOException("Unexpected migration reply: " + reply);
+                }
+            }
+            out.println(END + " " + records.size());
+            out.flush();
+            expect(in, DONE);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Serves a migration connection whose MIGRATE line has already been read.
+     */
+    public static void receive(String hello, BufferedReader in, PrintWriter out, KVServer server) throws IOException {
+        String[] parts = hello.split(" ");
+        String sender = parts.length > 1 ? parts[1] : "unknown";
+        String transferId = parts.length > 2 ? parts[2] : sender;
+        Map<String, Integer> offsets = server.getMigrationOffsets();
+        Integer resumed = offsets.get(transferId);
+        int offset = resumed != null ? resumed : 0;
+        if (offset > 0) {
+            LOGGER.info("Resuming migration " + transferId + " from " + sender + " at record " + offset);
+        }
+        reply(out, RESUME + " " + offset);
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith(BATCH + " ")) {
+                String[] batch = line.split(" ", 4);
+                int batchOffset;
+                try {
+                    batchOffset = Integer.parseInt(batch[1]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    reply(out, NACK + " " + offset);
+                    continue;
+                }
+                if (batchOffset != offset) {
+                    continue; // sent before our NACK, the sender resends from our offset
+                }
+                String payload = batch.length > 3 ? batch[3] : "";
+                List<String[]> entries = null;
+                if (batch.length > 2 && batch[2].equals(checksum(payload))) {
+                    try {
+                        entries = SimpleKVBatch.decode(payload, 2);
+                    } catch (IllegalArgumentException e) {
+                        entries = null;
+                    }
+                }
+                if (entries == null) {
+                    LOGGER.warn("Corrupt migration batch at record " + offset + " from " + sender);
+                    reply(out, NACK + " " + offset);
+                    continue;
+                }
+                Map<String, String> records = new HashMap<String, String>();
+                for (String[] entry : entries) {
+                    records.put(entry[0], entry[1]);
+                }
+                server.applyMigratedRecords(records);
+                offset += entries.size();
+                offsets.put(transferId, offset);
+                reply(out, ACK + " " + offset);
+            } else if (line.equals(ABORT)) {
+                offsets.remove(transferId); // applied records stay, the ECS decides who owns them
+                LOGGER.warn("Migration " + transferId + " from " + sender + " aborted at record " + offset);
+                reply(out, DONE + " " + offset);
+                return;
+            } else if (line.startsWith(END)) {
+                server.persistStorage();
+                offsets.remove(transferId);
+                LOGGER.info("Received " + offset + " migrated records from " + sender);
+                reply(out, DONE + " " + offset);
+                return;
+            } else {
+                reply(out, ERROR + " unexpected line");
+                return;
+            }
+        }
+        // Applied records stay, the sender resumes from the saved offset
+        LOGGER.error("Migration " + transferId + " from " + sender + " closed at record " + offset);
+    }
+
+    private static Socket connect(String host, int adminPort) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, adminPort), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /* @return the offset the receiver resumes the transfer at */
+    private static int hello(PrintWriter out, BufferedReader in, String sender, String transferId) throws IOException {
+        out.println(HELLO + " " + sender + " " + transferId);
+        out.flush();
+        return parseOffset(expect(in, RESUME));
+    }
+
+    /* BATCH <offset> <crc32> <fields> */
+    private static String frame(int offset, String fields) {
+        return BATCH + " " + offset + " " + checksum(fields) + " " + fields;
+    }
+
+    static String checksum(String payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static String expect(BufferedReader in, String prefix) throws IOException {
+        String reply = in.readLine();
+        if (reply == null || !reply.startsWith(prefix)) {
+            throw new IOException("Expected " + prefix + " but received: " + reply);
+        }
+        return reply;
+    }
+
+    /* "<WORD> <offset>" */
+    private static int parseOffset(String reply) throws IOException {
+        try {
+            return Integer.parseInt(reply.substring(reply.indexOf(' ') + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed migration reply: " + reply);
+        }
+    }
+
+    private static void reply(PrintWriter out, String line) {
+        out.println(line);
+        out.flush();
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Records [offset, offset + records) framed as one BATCH line */
+    private static class Batch {
+        final int offset;
+        final int records;
+        final String line;
+
+        private Batch(int offset, int records, String line) {
+            this.offset = offset;
+            this.records = records;
+            this.line = line;
+        }
+
+        static Batch of(List<String[]> all, int offset) {
+            StringBuilder payload = new StringBuilder();
+            int end = offset;
+            while (end < all.size() && payload.length() < BATCH_CHARS) {
+                SimpleKVBatch.appendField(payload, all.get(end)[0]);
+                SimpleKVBatch.appendField(payload, all.get(end)[1]);
+                end++;
+            }
+            return new Batch(offset, end - offset, frame(offset, payload.toString()));
+        }
+
+        int end() {
+            return offset + records;
+        }
+    }
+
+    /**
+     * Open transfer that carries single writes, each acknowledged before
+     * forward() returns. Used to keep a moved range in sync until the ECS
+     * has switched its ownership.
+     */
+    public static class Link {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+        private int offset;
+
+        private Link(Socket socket, PrintWriter out, BufferedReader in, int offset) {
+            this.socket = socket;
+            this.out = out;
+            this.in = in;
+            this.offset = offset;
+        }
+
+        /**
+         * @param transferId prefix of the link's name on the receiver, every link starts a transfer of its own
+         */
+        public static Link open(String sender, String host, int adminPort, String transferId) throws IOException {
+            Socket socket = connect(host, adminPort);
+            try {
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), false);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                return new Link(socket, out, in, hello(out, in, sender, uniqueId(transferId)));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Sends one write (null value deletes) and waits until the receiver applied it.
+         */
+        public synchronized void forward(String key, String value) throws IOException {
+            StringBuilder fields = new StringBuilder();
+            SimpleKVBatch.appendField(fields, key);
+            SimpleKVBatch.appendField(fields, value);
+            String line = frame(offset, fields.toString());
+            for (int attempt = 0; attempt < 2; attempt++) {
+                reply(out, line);
+                String reply = in.readLine();
+                if (reply != null && reply.startsWith(ACK + " ")) {
+                    offset = parseOffset(reply);
+                    return;
+                }
+                if (reply == null || !reply.startsWith(NACK + " ")) {
+                    break;
+                }
+            }
+            throw new IOException("Forwarded write of " + key + " was not acknowledged");
+        }
+
+        /* Ends the transfer, the receiver persists what it got */
+        public synchronized void close() throws IOException {
+            try {
+                reply(out, END + " " + offset);
+                expect(in, DONE);
+            } finally {
+                socket.close();
+            }
+        }
+
+        /* Gives the transfer up without waiting, the receiver forgets its offset */
+        public void abort() {
+            try {
+                reply(out, ABORT);
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.error("Error closing migration link", e);
+            }
+        }
+    }
+
+    private RangeMigration() {
+    }
+}
@@ -0,0 +1,368 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import app_kvECS.ECSControlChannel;
+import ecs.AckMode;
+import ecs.ECSCommand;
+import ecs.VersionedRing;
+import shared.messages.SimpleKVBatch;
+
+/**
+ * Copies the writes a server accepts as the owner of a key to the next
+ * distinct servers clockwise on the ring, its replicas. Writes travel as
+ * PUT_REPLICAS over one acknowledged command channel per replica, the kind
+ * the ECS uses, so each replica applies them in the order they were sent.
+ * The client is answered once the ack mode is met, with PUT_ERROR if it is
+ * not, although the write stays on the servers that took it; a replica that
+ * misses a write keeps the older value until the key is written again. A
+ * replica acknowledges once the copy is applied in memory and rewrites its
+ * storage file once for all copies received within FLUSH_DELAY_MS, so a key
+ * is lost only if every server holding it fails within that window.
+ *
+ * When the ring changes, the owner copies every record whose replica set
+ * gained a server to that server, so keys regain their copies after a node
+ * joins, leaves or fails.
+ */
+class Replicator {
+
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    static final long ACK_TIMEOUT_MS = 5000;
+    private static final int CONNECT_TIMEOUT = 1000; // ms
+    private static final long RECONNECT_DELAY_MS = 1000; // an unreachable replica is skipped this long
+    private static final int SEED_BATCH_CHARS = 64 * 1024;
+    private static final int ORDER_STRIPES = 64;
+    private static final long FLUSH_DELAY_MS = 50;
+
+    private final KVServer server;
+    private final ReadWriteLock writeGate; // client writes hold it shared, seeding takes it per batch
+    private final Object[] order = new Object[ORDER_STRIPES];
+    private volatile int factor = 1;
+    private volatile AckMode ackMode = AckMode.QUORUM;
+    private volatile Map<String, Integer> adminPorts = Collections.emptyMap(); // "host:port" to admin port
+    private final Map<String, ECSControlChannel> channels = new ConcurrentHashMap<String, ECSControlChannel>();
+    private final Map<String, Long> unreachableSince = new ConcurrentHashMap<String, Long>();
+    private final ExecutorService seeding = Executors.newSingleThreadExecutor(daemonThreads("replica-seed"));
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(daemonThreads("replica-flush"));
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    Replicator(KVServer server, ReadWriteLock writeGate) {
+        this.server = server;
+        this.writeGate = writeGate;
+        for (int i = 0; i < ORDER_STRIPES; i++) {
+            order[i] = new Object();
+        }
+    }
+
+    /* "factor ackMode [host:port adminPort ...]" from SET_REPLICATION */
+    void configure(String args) {
+        String[] parts = args.trim().split(" ");
+        if (parts.length < 2 || parts.length % 2 != 0) {
+            throw new IllegalArgumentException("SET_REPLICATION needs a factor, an ack mode and admin ports in pairs");
+        }
+        int newFactor = Integer.parseInt(parts[0]);
+        if (newFactor < 1) {
+            throw new IllegalArgumentException("Replication factor must be at least 1: " + newFactor);
+        }
+        AckMode newMode = AckMode.valueOf(parts[1]);
+        Map<String, Integer> ports = new HashMap<String, Integer>();
+        for (int i = 2; i < parts.length; i += 2) {
+            ports.put(parts[i], Integer.parseInt(parts[i + 1]));
+        }
+        factor = newFactor;
+        ackMode = newMode;
+        adminPorts = ports;
+        // Servers that left are no longer written to
+        for (String replica : new ArrayList<String>(channels.keySet())) {
+            if (!ports.containsKey(replica)) {
+                ECSControlChannel channel = channels.remove(replica);
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /* PUT_REPLICAS from the owner of the keys, in the order it applied them */
+    void applyCopies(String args) {
+        Map<String, String> records = new LinkedHashMap<String, String>();
+        for (String[] entry : SimpleKVBatch.decode(args != null ? args : "", 2)) {
+            records.put(entry[0], entry[1]);
+        }
+        server.applyMigratedRecords(records);
+        if (flushScheduled.compareAndSet(false, true)) {
+            flusher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false); // copies arriving from now on schedule the next flush
+                    server.persistStorage();
+                }
+            }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /* Writes to one key are applied and sent on under the same monitor, so replicas see them in order */
+    Object orderOf(String key) {
+        return order[(key.hashCode() & 0x7fffffff) % ORDER_STRIPES];
+    }
+
+    /**
+     * @return true if this server holds a copy of the key without owning it
+     */
+    boolean isReplicaOf(String key) {
+        VersionedRing ring = server.currentRing();
+        if (ring == null || factor <= 1) {
+            return false;
+        }
+        List<String> replicas = ring.replicasFor(key, factor);
+        return replicas.indexOf(server.getServerName()) > 0;
+    }
+
+    /**
+     * Sends a write this server applied as the owner of the key to the key's
+     * replicas. Must be called under orderOf(key), right after applying it.
+     * @return the acknowledgements the client waits for
+     */
+    Acks replicate(String key, String value) {
+        VersionedRing ring = server.currentRing();
+        if (ring == null || factor <= 1) {
+            return Acks.NONE;
+        }
+        List<String> replicas = ring.replicasFor(key, factor);
+        if (replicas.size() <= 1) {
+            return Acks.NONE;
+        }
+        StringBuilder fields = new StringBuilder();
+        SimpleKVBatch.appendField(fields, key);
+        SimpleKVBatch.appendField(fields, value);
+        List<CompletableFuture<String>> replies = new ArrayList<CompletableFuture<String>>(replicas.size() - 1);
+        for (String replica : replicas.subList(1, replicas.size())) {
+            replies.add(send(replica, fields.toString()));
+        }
+        return new Acks(replies, ackMode.required(replicas.size()) - 1);
+    }
+
+    /* Copies records whose replica set gained a server, once the new ring is committed */
+    void ringChanged(final VersionedRing before, final VersionedRing after) {
+        if (factor <= 1) {
+            return;
+        }
+        seeding.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    seed(before, after);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error copying records to new replicas", e);
+                }
+            }
+        });
+    }
+
+    void close() {
+        seeding.shutdownNow();
+        flusher.shutdownNow();
+        for (ECSControlChannel channel : channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+    }
+
+    private void seed(VersionedRing before, VersionedRing after) {
+        String self = server.getServerName();
+        Map<String, List<String>> keysByReplica = new HashMap<String, List<String>>();
+        for (String key : server.storedKeys()) {
+            List<String> replicas = after.replicasFor(key, factor);
+            if (replicas.isEmpty() || !self.equals(replicas.get(0))) {
+                continue; // only the owner copies a key
+            }
+            List<String> previous = before != null ? before.replicasFor(key, factor) : Collections.<String>emptyList();
+            for (String replica : replicas.subList(1, replicas.size())) {
+                if (!previous.contains(replica)) {
+                    List<String> keys = keysByReplica.get(replica);
+                    if (keys == null) {
+                        keys = new ArrayList<String>();
+                        keysByReplica.put(replica, keys);
+                    }
+                    keys.add(key);
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> replica : keysByReplica.entrySet()) {
+            int copied = seed(replica.getKey(), replica.getValue());
+            LOGGER.info("Copied " + copied + " of " + replica.getValue().size() + " records to new replica " + replica.getKey());
+        }
+    }
+
+    /* @return records the replica acknowledged */
+    private int seed(String replica, List<String> keys) {
+        int copied = 0;
+        int next = 0;
+        while (next < keys.size()) {
+            StringBuilder fields = new StringBuilder();
+            int records = 0;
+            CompletableFuture<String> reply;
+            // Values are read and sent while no client write is in progress, later writes reach the replica after them
+            writeGate.writeLock().lock();
+            try {
+                while (next < keys.size() && fields.length() < SEED_BATCH_CHARS) {
+                    String key = keys.get(next++);
+                    String value = server.storedValue(key);
+                    if (value != null) {
+                        SimpleKVBatch.appendField(fields, key);
+                        SimpleKVBatch.appendField(fields, value);
+                        records++;
+                    }
+                }
+                if (records == 0) {
+                    continue;
+                }
+                reply = send(replica, fields.toString());
+            } finally {
+                writeGate.writeLock().unlock();
+            }
+            try {
+                reply.get(ACK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                copied += records;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return copied;
+            } catch (ExecutionException | TimeoutException e) {
+                LOGGER.warn("Replica " + replica + " did not take copied records: " + e);
+                return copied;
+            }
+        }
+        return copied;
+    }
+
+    private CompletableFuture<String> send(String replica, String fields) {
+        ECSControlChannel channel;
+        try {
+            channel = channelFor(replica);
+        } catch (IOException e) {
+            CompletableFuture<String> failed = new CompletableFuture<String>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return channel.send(ECSCommand.PUT_REPLICAS, fields);
+    }
+
+    private ECSControlChannel channelFor(String replica) throws IOException {
+        ECSControlChannel channel = channels.get(replica);
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        synchronized (channels) {
+            channel = channels.get(replica);
+            if (channel != null && channel.isOpen()) {
+                return channel;
+            }
+            Integer adminPort = adminPorts.get(replica);
+            if (adminPort == null) {
+                throw new IOException("Admin port of replica " + replica + " is unknown");
+            }
+            Long since = unreachableSince.get(replica);
+            if (since != null && System.currentTimeMillis() - since < RECONNECT_DELAY_MS) {
+                throw new IOException("Replica " + replica + " is unreachable");
+            }
+            try {
+                channel = new ECSControlChannel(replica, replica.split(":")[0], adminPort, CONNECT_TIMEOUT);
+            } catch (IOException e) {
+                unreachableSince.put(replica, System.currentTimeMillis());
+                LOGGER.warn("Could not connect to replica " + replica + ": " + e.getMessage());
+                throw e;
+            }
+            unreachableSince.remove(replica);
+            channels.put(replica, channel);
+            return channel;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Replies of the replicas a write was sent to, of which a number must
+     * acknowledge before the client is answered.
+     */
+    static final class Acks {
+
+        static final Acks NONE = new Acks(Collections.<CompletableFuture<String>>emptyList(), 0);
+
+        private final List<CompletableFuture<String>> replies;
+        private final int needed;
+
+        Acks(List<CompletableFuture<String>> replies, int needed) {
+            this.replies = replies;
+            this.needed = needed;
+        }
+
+        /**
+         * Waits until enough replicas acknowledged.
+         * @throws IOException if too many replicas failed or did not answer in time
+         */
+        void await() throws IOException {
+            long deadline = System.currentTimeMillis() + ACK_TIMEOUT_MS;
+            while (true) {
+                int acked = 0;
+                int failed = 0;
+                List<CompletableFuture<String>> open = new ArrayList<CompletableFuture<String>>();
+                for (CompletableFuture<String> reply : replies) {
+                    if (!reply.isDone()) {
+                        open.add(reply);
+                    } else if (reply.isCompletedExceptionally()) {
+                        failed++;
+                    } else {
+                        acked++;
+                    }
+                }
+                if (acked >= needed) {
+                    return;
+                }
+                if (replies.size() - failed < needed) {
+                    throw new IOException("Only " + acked + " of " + needed + " replicas acknowledged the write");
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Replicas did not acknowledge the write within " + ACK_TIMEOUT_MS + " ms");
+                }
+                try {
+                    CompletableFuture.anyOf(open.toArray(new CompletableFuture<?>[open.size()])).get(remaining, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    // counted on the next pass
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for replicas");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import shared.messages.SimpleKVCommunication;
+import shared.messages.SimpleKVMessage;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * Non-blocking counterpart of KVCommunication.
+ *
+ * A single I/O thread drives one pipelined connection per KVServer through a
+ * Selector. Requests are written in submission order and, since a server
+ * answers the requests of a connection in order, each response completes the
+ * oldest in-flight future of that connection. Futures are completed on the
+ * I/O thread, so dependent actions must not block.
+ */
+public class AsyncKVCommunication implements Runnable {
+
+	private Logger logger = Logger.getRootLogger();
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final Selector selector;
+	private final Map<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+	private final Queue<Connection> updated = new ConcurrentLinkedQueue<Connection>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private volatile boolean running;
+
+	public AsyncKVCommunication() throws IOException {
+		selector = Selector.open();
+		running = true;
+		Thread ioThread = new Thread(this, "kvstore-io");
+		ioThread.setDaemon(true);
+		ioThread.start();
+	}
+
+	/**
+	 * Queues a request for the given server without waiting for the response.
+	 * @return future completed with the response, or exceptionally if the
+	 *         connection fails before the response arrives
+	 */
+	public CompletableFuture<SimpleKVMessage> send(String address, int port, StatusType status, String key, String value) {
+		if (status == StatusType.PUT && SimpleKVCommunication.shouldStream(value) && !SimpleKVCommunication.isStreamable(value)) {
+			logger.error("Value for key " + key + " cannot be streamed, it is too long or holds characters outside printable ASCII");
+			return CompletableFuture.completedFuture(new SimpleKVMessage(StatusType.PUT_ERROR, key, null));
+		}
+		byte[] request;
+		try {
+			request = encode(status, key, value);
+		} catch (IOException e) {
+			CompletableFuture<SimpleKVMessage> response = new CompletableFuture<SimpleKVMessage>();
+			response.completeExceptionally(e);
+			return response;
+		}
+		return enqueue(address, port, request);
+	}
+
+	/**
+	 * Queues an already built message, e.g. a batch frame.
+	 */
+	public CompletableFuture<SimpleKVMessage> send(String address, int port, SimpleKVMessage message) {
+		return enqueue(address, port, message.getMsgBytes());
+	}
+
+	private CompletableFuture<SimpleKVMessage> enqueue(String address, int port, byte[] request) {
+		CompletableFuture<SimpleKVMessage> response = new CompletableFuture<SimpleKVMessage>();
+		if (!running) {
+			response.completeExceptionally(new IOException("Client closed"));
+			return response;
+		}
+		Connection conn;
+		try {
+			conn = connectionFor(address, port);
+		} catch (IOException e) {
+			response.completeExceptionally(e);
+			return response;
+		}
+		synchronized (conn) {
+			if (conn.closed) {
+				response.completeExceptionally(new IOException("Connection to " + conn.address + " closed"));
+				return response;
+			}
+			conn.inFlight.add(response);
+			conn.writes.add(ByteBuffer.wrap(request));
+		}
+		markUpdated(conn);
+		return response;
+	}
+
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+				wakeupPending.set(false);
+
+				Connection conn;
+				while ((conn = updated.poll()) != null) {
+					try {
+						updateInterest(conn);
+					} catch (IOException e) {
+						fail(conn, e);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					conn = (Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isConnectable()) {
+							conn.channel.finishConnect();
+						}
+						if (key.isValid() && key.isReadable()) {
+							read(conn);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(conn);
+						}
+						updateInterest(conn);
+					} catch (IOException e) {
+						fail(conn, e);
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Async I/O loop failed", e);
+		} finally {
+			for (Connection conn : new ArrayList<Connection>(connections.values())) {
+				fail(conn, new IOException("Client closed"));
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.error("Unable to close selector!");
+			}
+		}
+	}
+
+	/* Large PUT values use the chunked stream encoding, like the blocking client */
+	private byte[] encode(StatusType status, String key, String value) throws IOException {
+		if (status == StatusType.PUT && SimpleKVCommunication.shouldStream(value)) {
+			ByteArrayOutputStream stream = new ByteArrayOutputStream(value.length() + 64);
+			SimpleKVCommunication.sendStreamed(StatusType.PUT_STREAM, key, value, stream, logger, false);
+			return stream.toByteArray();
+		}
+		return new SimpleKVMessage(status, key, value).getMsgBytes();
+	}
+
+	private synchronized Connection connectionFor(String address, int port) throws IOException {
+		String id = address + ":" + port;
+		Connection conn = connections.get(id);
+		if (conn == null || conn.closed) {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.connect(new InetSocketAddress(address, port));
+			conn = new Connection(id, channel);
+			connections.put(id, conn);
+			logger.info("Opened async connection to " + id);
+		}
+		return conn;
+	}
+
+	/* Hands the connection to the I/O thread, waking the selector at most once per round */
+	private void markUpdated(Connection conn) {
+		updated.add(conn);
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	private void updateInterest(Connection conn) throws IOException {
+		if (conn.closed) {
+			return;
+		}
+		if (conn.key == null) {
+			conn.key = conn.channel.register(selector, 0, conn);
+		}
+		int ops;
+		if (!conn.channel.isConnected()) {
+			ops = SelectionKey.OP_CONNECT;
+		} else {
+			synchronized (conn) {
+				ops = SelectionKey.OP_READ | (conn.writes.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+			}
+		}
+		conn.key.interestOps(ops);
+	}
+
+	private void write(Connection conn) throws IOException {
+		synchronized (conn) {
+			while (!conn.writes.isEmpty()) {
+				ByteBuffer buffer = conn.writes.peek();
+				conn.channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					return; // socket buffer full, continue on the next OP_WRITE
+				}
+				conn.writes.poll();
+			}
+		}
+	}
+
+	private void read(Connection conn) throws IOException {
+		readBuffer.clear();
+		int read = conn.channel.read(readBuffer);
+		if (read < 0) {
+			throw new EOFException("Connection closed by peer");
+		}
+		readBuffer.flip();
+		while (readBuffer.hasRemaining()) {
+			byte b = readBuffer.get();
+			StringBuilder target = conn.streamValue != null ? conn.streamValue : conn.line;
+			if (b == 13) {
+				frameComplete(conn);
+			} else if (b > 31 && b < 127) {
+				if (conn.streamValue != null && conn.streamValue.length() == conn.streamLength) {
+					throw new IOException("GET_STREAM longer than the announced " + conn.streamLength + " chars");
+				}
+				target.append((char) b);
+			}
+		}
+	}
+
+	private void frameComplete(Connection conn) throws IOException {
+		if (conn.streamValue != null) {
+			if (conn.streamValue.length() < conn.streamLength) {
+				return; // more chunks to come
+			}
+			SimpleKVMessage message = new SimpleKVMessage(StatusType.GET_SUCCESS, conn.streamKey, conn.streamValue.toString());
+			conn.streamValue = null;
+			conn.streamKey = null;
+			complete(conn, message);
+			return;
+		}
+		String frame = conn.line.toString();
+		conn.line.setLength(0);
+		SimpleKVMessage message = SimpleKVCommunication.parseMessage(frame, logger);
+		if (message.getStatus() == StatusType.GET_STREAM) {
+			try {
+				conn.streamLength = Integer.parseInt(message.getValue());
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid GET_STREAM length: " + message.getValue());
+			}
+			if (!SimpleKVCommunication.isStreamLength(conn.streamLength)) {
+				throw new IOException("Invalid GET_STREAM length: " + conn.streamLength);
+			}
+			conn.streamKey = message.getKey();
+			conn.streamValue = new StringBuilder(Math.min(conn.streamLength, SimpleKVCommunication.CHUNK_SIZE)); // grows with the chunks
+			return;
+		}
+		complete(conn, message);
+	}
+
+	private void complete(Connection conn, SimpleKVMessage message) {
+		CompletableFuture<SimpleKVMessage> response;
+		synchronized (conn) {
+			response = conn.inFlight.poll();
+		}
+		if (response != null) {
+			response.complete(message);
+		} else {
+			logger.error("Unexpected response from " + conn.address + ": " + message.getStatus());
+		}
+	}
+
+	private void fail(Connection conn, IOException cause) {
+		List<CompletableFuture<SimpleKVMessage>> failed;
+		synchronized (conn) {
+			conn.closed = true;
+			failed = new ArrayList<CompletableFuture<SimpleKVMessage>>(conn.inFlight);
+			conn.inFlight.clear();
+			conn.writes.clear();
+		}
+		connections.remove(conn.address, conn);
+		try {
+			conn.channel.close();
+		} catch (IOException e) {
+			logger.error("Unable to close async connection to " + conn.address);
+		}
+		if (!failed.isEmpty()) {
+			logger.error("Async connection to " + conn.address + " failed with " + failed.size() + " requests in flight: " + cause.getMessage());
+		}
+		for (CompletableFuture<SimpleKVMessage> response : failed) {
+			response.completeExceptionally(cause);
+		}
+	}
+
+	private static class Connection {
+		final String address;
+		final SocketChannel channel;
+		SelectionKey key;
+		volatile boolean closed;
+
+		/* guarded by the connection, written by callers and drained by the I/O thread */
+		final Queue<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+		final Queue<CompletableFuture<SimpleKVMessage>> inFlight = new ArrayDeque<CompletableFuture<SimpleKVMessage>>();
+
+		/* read state, only touched by the I/O thread */
+		final StringBuilder line = new StringBuilder();
+		StringBuilder streamValue;
+		String streamKey;
+		int streamLength;
+
+		Connection(String address, SocketChannel channel) {
+			this.address = address;
+			this.channel = channel;
+		}
+	}
+}
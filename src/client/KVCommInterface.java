@@ -1,5 +1,9 @@
 package client;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 import shared.messages.KVMessage;
 
 public interface KVCommInterface {
@@ -42,4 +46,65 @@ public interface KVCommInterface {
 	 *             KV server).
 	 */
 	public KVMessage get(String key) throws Exception;
+
+	/**
+	 * Inserts a key-value pair without blocking the calling thread. Requests
+	 * are pipelined over non-blocking connections, one per KVServer.
+	 *
+	 * @param key
+	 *            the key that identifies the given value.
+	 * @param value
+	 *            the value that is indexed by the given key.
+	 * @return a future completed with the server response, or exceptionally
+	 *         if the connection to the KVServer fails.
+	 */
+	public CompletableFuture<KVMessage> putAsync(String key, String value);
+
+	/**
+	 * Retrieves the value for a given key without blocking the calling thread.
+	 *
+	 * @param key
+	 *            the key that identifies the value.
+	 * @return a future completed with the server response, or exceptionally
+	 *         if the connection to the KVServer fails.
+	 */
+	public CompletableFuture<KVMessage> getAsync(String key);
+
+	/**
+	 * Retrieves the values for several keys, sending one request per
+	 * responsible KVServer.
+	 *
+	 * @param keys
+	 *            the keys that identify the values.
+	 * @return the per-key responses (GET_SUCCESS / GET_ERROR), in key order.
+	 * @throws Exception
+	 *             if the batch cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Map<String, KVMessage> mget(Collection<String> keys) throws Exception;
+
+	/**
+	 * Inserts several key-value pairs, sending one request per responsible
+	 * KVServer. A null value deletes the key.
+	 *
+	 * @param entries
+	 *            the key-value pairs to insert.
+	 * @return the per-key responses (PUT_SUCCESS / PUT_UPDATE / ...), in key order.
+	 * @throws Exception
+	 *             if the batch cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Map<String, KVMessage> mput(Map<String, String> entries) throws Exception;
+
+	/**
+	 * Deletes several keys, sending one request per responsible KVServer.
+	 *
+	 * @param keys
+	 *            the keys to delete.
+	 * @return the per-key responses (DELETE_SUCCESS / DELETE_ERROR), in key order.
+	 * @throws Exception
+	 *             if the batch cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Map<String, KVMessage> mdelete(Collection<String> keys) throws Exception;
 }
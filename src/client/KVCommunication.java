@@ -1,6 +1,7 @@
 package client; 
 
 import java.io.PrintWriter;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
@@ -85,18 +86,39 @@ public class KVCommunication implements Runnable {
             throw new IOException("Output stream not initialized");
         }
 
+        // Large values go out in chunks instead of one frame
+        if (status == StatusType.PUT && SimpleKVCommunication.shouldStream(value)) {
+            if (!SimpleKVCommunication.isStreamable(value)) {
+                // The receiver would refuse it, or drop these characters and lose track of the stream length
+                logger.error("Value for key " + key + " cannot be streamed, it is too long or holds characters outside printable ASCII");
+                return new SimpleKVMessage(StatusType.PUT_ERROR, key, null);
+            }
+            SimpleKVCommunication.sendStreamed(StatusType.PUT_STREAM, key, value, output, logger, true);
+            return receiveMessage();
+        }
+
         // Create SimpleKVMessage format
         SimpleKVMessage messageToSend = new SimpleKVMessage(status, key, value);
-        
+        return sendMessage(messageToSend);
+
+        // // Receive the response from the server and parse it
+        // String response = receiveFormattedMessage();
+        // return parseMessage(response);
+    }
+
+    /**
+     * For sending an already built message (e.g. a batch frame) to the KV server.
+     */
+    public SimpleKVMessage sendMessage(SimpleKVMessage messageToSend) throws IOException {
+        if (output == null) {
+            throw new IOException("Output stream not initialized");
+        }
+
         // Send the message
         SimpleKVCommunication.sendMessage(messageToSend, output, logger);
 
         System.out.println("KVComm, Sent message: " + messageToSend); 
         return receiveMessage(); 
-
-        // // Receive the response from the server and parse it
-        // String response = receiveFormattedMessage();
-        // return parseMessage(response);
     }
 
     /**
@@ -112,8 +134,13 @@ public class KVCommunication implements Runnable {
         try {
             String response = SimpleKVCommunication.receiveMessage(input, logger);
             System.out.println("Received raw message: " + response); // MODIFIED: Added logging for raw received message
-            return SimpleKVCommunication.parseMessage(response, logger);
-        } catch (IOException e) {
+            SimpleKVMessage message = SimpleKVCommunication.parseMessage(response, logger);
+            if (message.getStatus() == StatusType.GET_STREAM) {
+                String value = SimpleKVCommunication.receiveStreamed(input, Integer.parseInt(message.getValue()));
+                return new SimpleKVMessage(StatusType.GET_SUCCESS, message.getKey(), value);
+            }
+            return message;
+        } catch (IOException | NumberFormatException e) {
             throw new IOException("Response not readable.");
         }
     }
@@ -150,6 +177,6 @@ public class KVCommunication implements Runnable {
 
     public void connect() throws IOException {
         output = clientSocket.getOutputStream();
-        input = clientSocket.getInputStream();
+        input = new BufferedInputStream(clientSocket.getInputStream(), BUFFER_SIZE * 8);
     }
 }
\ No newline at end of file
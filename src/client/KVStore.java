@@ -6,16 +6,33 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import org.apache.log4j.Logger;
 
 import client.KVCommunication;
-import ecs.ConsistentHashing;
+import ecs.RingDelta;
+import ecs.VersionedRing;
 import app_kvECS.ECSClient;
 
 import shared.messages.KVMessage;
+import shared.messages.SimpleKVBatch;
+import shared.messages.SimpleKVCommunication;
 import shared.messages.SimpleKVMessage;
 import shared.messages.KVMessage.StatusType;
 
@@ -27,9 +44,25 @@ public class KVStore implements KVCommInterface {
 	private String serverAddress;
 	private int serverPort;
 
-	private String metadata;
+	/* parsed once per metadata version and swapped atomically */
+	private volatile MetadataRing ring;
 
-	private KVCommunication kvComm;
+	/* warm connections keyed by "host:port", including the one to the configured server */
+	private final Map<String, KVCommunication> connections = new ConcurrentHashMap<String, KVCommunication>();
+	private AsyncKVCommunication asyncComm;
+	private CompletableFuture<Void> metadataRefresh;
+	private WriteBatcher writeBatcher;
+	private volatile RetryPolicy retryPolicy = RetryPolicy.defaults();
+	private volatile int readReplicas = 1;
+	private WriteLockQueue writeLockQueue;
+	private ScheduledExecutorService retryScheduler;
+	/* async requests not completed yet, including parked and scheduled retries */
+	private final Set<CompletableFuture<KVMessage>> pendingAsync = ConcurrentHashMap.newKeySet();
+
+	private static final int MAX_BATCH_ATTEMPTS = 3;
+	private static final int MAX_BATCH_FRAME_CHARS = 512 * 1024;
+	private static final int MAX_ASYNC_ATTEMPTS = 3;
+	private static final long DISCONNECT_FLUSH_TIMEOUT_MS = 5000;
 
 	/**
 	 * Initialize KVStore with address and port of KVServer
@@ -47,17 +80,52 @@ public class KVStore implements KVCommInterface {
 		if (serverAddress == null || serverPort <= 0) {
             throw new IllegalStateException("Server address and port are not set.");
         }
-        kvComm = new KVCommunication(serverAddress, serverPort);
-        kvComm.connect();
+        KVCommunication comm = new KVCommunication(serverAddress, serverPort);
+        comm.connect();
+        connections.put(configuredServer(), comm);
         setRunning(true);
+        // Route the first requests directly instead of bouncing through SERVER_NOT_RESPONSIBLE
+        try {
+            refreshMetadata(comm);
+        } catch (IOException e) {
+            logger.error("Unable to fetch metadata on connect: " + e.getMessage());
+        }
 	}
 
 	@Override
 	public void disconnect() {
 		if (isRunning()) {
-			kvComm.closeConnection();
+			for (KVCommunication comm : connections.values()) {
+				comm.closeConnection();
+			}
+			connections.clear();
 			setRunning(false);
 		}
+		WriteBatcher batcher;
+		synchronized (this) {
+			batcher = writeBatcher;
+			writeBatcher = null;
+		}
+		// Lingering writes are sent and answered before the connections go; their callbacks may need this lock
+		if (batcher != null) {
+			batcher.close(DISCONNECT_FLUSH_TIMEOUT_MS);
+		}
+		synchronized (this) {
+			if (retryScheduler != null) {
+				retryScheduler.shutdownNow();
+				retryScheduler = null;
+				writeLockQueue = null;
+			}
+			// Parked and scheduled retries will never run now
+			IOException closed = new IOException("Client disconnected");
+			for (CompletableFuture<KVMessage> pending : new ArrayList<CompletableFuture<KVMessage>>(pendingAsync)) {
+				pending.completeExceptionally(closed);
+			}
+			if (asyncComm != null) {
+				asyncComm.close();
+				asyncComm = null;
+			}
+		}
 	}
 
 
@@ -86,49 +154,637 @@ public class KVStore implements KVCommInterface {
 		return requestResponse; // Return the response
 	}
 
+	/* Retries rejected requests on the calling thread, as the retry policy allows */
 	private SimpleKVMessage sendMessageWithRetry(StatusType status, String key, String value) throws SocketException, Exception {
-		SimpleKVMessage response = kvComm.sendMessage(status, key, value);
+		long deadline = System.currentTimeMillis() + retryPolicy.getDeadlineMs();
+		for (int retries = 0; ; retries++) {
+			SimpleKVMessage response = sendRouted(status, key, value);
+			if (response == null || !retryPolicy.isRetryable(response.getStatus())) {
+				return response;
+			}
+			long delay = retryPolicy.delayFor(retries, response.getStatus() == StatusType.SERVER_WRITE_LOCK ? unlockHint(response) : -1);
+			if (System.currentTimeMillis() + delay >= deadline) {
+				return response;
+			}
+			logger.info("Retrying " + status + " for key " + key + " after " + response.getStatus() + " in " + delay + " ms");
+			Thread.sleep(delay);
+		}
+	}
+
+	private SimpleKVMessage sendRouted(StatusType status, String key, String value) throws SocketException, Exception {
+		String host = status == StatusType.GET ? readServerFor(key) : serverFor(key);
+		KVCommunication comm = connectionFor(host);
+		SimpleKVMessage response;
+		try {
+			response = send(comm, status, key, value);
+		} catch (IOException e) {
+			if (host == null) {
+				throw e;
+			}
+			// The owner may have failed and been removed from the ring
+			refreshMetadataFromAnyServer(host);
+			String newHost = serverFor(key);
+			if (host.equals(newHost)) {
+				throw e;
+			}
+			comm = connectionFor(newHost);
+			response = send(comm, status, key, value);
+		}
 		if (response != null && response.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
-			// Find the responsible server
-			SimpleKVMessage keyrangeRes = keyrange();
-			String[] keyrangeResMsg = keyrangeRes.getMsg().split(" ", 2);
-			metadata = keyrangeResMsg[1];
-			String newHost = findResponsibleServer(metadata, key);
+			// The rejection carries the current metadata, KEYRANGE is only needed if it does not
+			if (updateMetadata(inlineMetadata(response), response.getEpoch())) {
+				pruneConnections();
+			} else {
+				refreshMetadata(comm);
+			}
+			String newHost = serverFor(key);
 			if (newHost != null) {
-				String[] newHostDetails = newHost.split(":");
-				String newHostIP = newHostDetails[0];
-				Integer newHostPort = Integer.parseInt(newHostDetails[1]);
-
-				// TODO: Retry connection to correct server
-				reconnect(newHostIP, newHostPort);
-				response = kvComm.sendMessage(status, key, value);
+				response = send(connectionFor(newHost), status, key, value);
 			}
+		} else if (response != null && isStale(response)) {
+			refreshMetadata(comm);
 		}
 		return response;
 	}
 
+	/**
+	 * Returns the pooled connection to the given "host:port", opening it on
+	 * first use. A null host stands for the configured server.
+	 */
+	private KVCommunication connectionFor(String host) throws Exception {
+		if (!isRunning()) {
+			throw new IOException("Not connected");
+		}
+		if (host == null) {
+			host = configuredServer();
+		}
+		KVCommunication comm = connections.get(host);
+		if (comm == null) {
+			String[] hostDetails = host.split(":");
+			comm = new KVCommunication(hostDetails[0], Integer.parseInt(hostDetails[1]));
+			comm.connect();
+			KVCommunication existing = connections.putIfAbsent(host, comm);
+			if (existing != null) {
+				comm.closeConnection();
+				return existing;
+			}
+			logger.info("Opened pooled connection to " + host);
+		}
+		return comm;
+	}
+
+	/* A connection that fails mid request is dropped from the pool, the next request opens a new one */
+	private SimpleKVMessage send(KVCommunication comm, SimpleKVMessage message) throws Exception {
+		synchronized (comm) {
+			try {
+				return comm.sendMessage(message);
+			} catch (IOException e) {
+				evict(comm);
+				throw e;
+			}
+		}
+	}
+
+	private SimpleKVMessage send(KVCommunication comm, StatusType status, String key, String value) throws Exception {
+		synchronized (comm) {
+			try {
+				return comm.sendMessage(status, key, value);
+			} catch (IOException e) {
+				evict(comm);
+				throw e;
+			}
+		}
+	}
+
+	private void evict(KVCommunication comm) {
+		for (Map.Entry<String, KVCommunication> entry : connections.entrySet()) {
+			if (entry.getValue() == comm) {
+				connections.remove(entry.getKey(), comm);
+			}
+		}
+		comm.closeConnection();
+	}
+
+	@Override
+	public CompletableFuture<KVMessage> putAsync(String key, String value) {
+		CompletableFuture<KVMessage> result = trackedFuture();
+		sendAsyncWithRetry(StatusType.PUT, key, value, 1, 0, null, System.currentTimeMillis() + retryPolicy.getDeadlineMs(), result);
+		return result;
+	}
+
+	@Override
+	public CompletableFuture<KVMessage> getAsync(String key) {
+		CompletableFuture<KVMessage> result = trackedFuture();
+		sendAsyncWithRetry(StatusType.GET, key, null, 1, 0, null, System.currentTimeMillis() + retryPolicy.getDeadlineMs(), result);
+		return result;
+	}
+
+	/* A future disconnect() fails if it is still pending then */
+	private CompletableFuture<KVMessage> trackedFuture() {
+		final CompletableFuture<KVMessage> result = new CompletableFuture<KVMessage>();
+		pendingAsync.add(result);
+		result.whenComplete(new BiConsumer<KVMessage, Throwable>() {
+			@Override
+			public void accept(KVMessage response, Throwable error) {
+				pendingAsync.remove(result);
+			}
+		});
+		return result;
+	}
+
+	/* Routes by the cached metadata; on SERVER_NOT_RESPONSIBLE the metadata is refreshed and the request re-routed.
+	 * SERVER_WRITE_LOCK parks writes until the server unlocks, SERVER_STOPPED backs off, both until the deadline.
+	 * parkedOn is the server the write was last parked for, which may no longer be the one it is routed to. */
+	private void sendAsyncWithRetry(final StatusType status, final String key, final String value, final int attempt,
+			final int retries, final String parkedOn, final long deadline, final CompletableFuture<KVMessage> result) {
+		if (result.isDone()) {
+			return; // failed by disconnect() while the retry was waiting
+		}
+		final String[] host = hostFor(status == StatusType.GET && attempt == 1 ? readServerFor(key) : serverFor(key));
+		final String hostKey = host[0] + ":" + host[1];
+		AsyncKVCommunication comm;
+		try {
+			comm = asyncComm();
+		} catch (IOException e) {
+			result.completeExceptionally(e);
+			return;
+		}
+		CompletableFuture<SimpleKVMessage> response;
+		WriteBatcher batcher = writeBatcher;
+		if (batcher != null && status == StatusType.PUT && !SimpleKVCommunication.shouldStream(value)) {
+			response = batcher.put(hostKey, key, value);
+		} else {
+			response = comm.send(host[0], Integer.parseInt(host[1]), status, key, value);
+		}
+		response.whenComplete(new BiConsumer<SimpleKVMessage, Throwable>() {
+			@Override
+			public void accept(final SimpleKVMessage response, Throwable error) {
+				// Locks may cover only the moving ranges, so only a retried write getting through proves its lock is gone
+				if (error != null || (retries > 0 && response.getStatus() != StatusType.SERVER_WRITE_LOCK)) {
+					writeLockQueue().unlocked(hostKey);
+					if (parkedOn != null && !parkedOn.equals(hostKey)) {
+						writeLockQueue().unlocked(parkedOn); // the writes waiting there were waiting on this one
+					}
+				}
+				if (error != null) {
+					result.completeExceptionally(error);
+				} else if (response.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE && attempt < MAX_ASYNC_ATTEMPTS) {
+					if (updateMetadata(inlineMetadata(response), response.getEpoch())) {
+						sendAsyncWithRetry(status, key, value, attempt + 1, retries, parkedOn, deadline, result);
+						return;
+					}
+					refreshMetadataAsync(host).whenComplete(new BiConsumer<Void, Throwable>() {
+						@Override
+						public void accept(Void ignored, Throwable refreshError) {
+							sendAsyncWithRetry(status, key, value, attempt + 1, retries, parkedOn, deadline, result);
+						}
+					});
+				} else if (retryPolicy.isRetryable(response.getStatus()) && System.currentTimeMillis() < deadline) {
+					Runnable retry = new Runnable() {
+						@Override
+						public void run() {
+							sendAsyncWithRetry(status, key, value, attempt, retries + 1,
+								response.getStatus() == StatusType.SERVER_WRITE_LOCK ? hostKey : parkedOn, deadline, result);
+						}
+					};
+					if (response.getStatus() == StatusType.SERVER_WRITE_LOCK) {
+						writeLockQueue().park(hostKey, retry, new Runnable() {
+							@Override
+							public void run() {
+								result.complete(response);
+							}
+						}, deadline, unlockHint(response));
+					} else {
+						retryScheduler().schedule(retry, retryPolicy.delayFor(retries, -1), TimeUnit.MILLISECONDS);
+					}
+				} else {
+					if (isStale(response)) {
+						refreshMetadataAsync(host);
+					}
+					result.complete(response);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets how writes rejected with SERVER_WRITE_LOCK, and requests rejected
+	 * with SERVER_STOPPED if the policy asks for it, are retried.
+	 * RetryPolicy.NONE hands them straight back to the caller.
+	 */
+	public synchronized void setRetryPolicy(RetryPolicy policy) {
+		retryPolicy = policy;
+		writeLockQueue = null;
+	}
+
+	private synchronized ScheduledExecutorService retryScheduler() {
+		if (retryScheduler == null) {
+			retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "kvstore-retry");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return retryScheduler;
+	}
+
+	private synchronized WriteLockQueue writeLockQueue() {
+		if (writeLockQueue == null) {
+			writeLockQueue = new WriteLockQueue(retryScheduler(), retryPolicy);
+		}
+		return writeLockQueue;
+	}
+
+	/* SERVER_WRITE_LOCK carries the server's estimate until it unlocks */
+	private static long unlockHint(SimpleKVMessage response) {
+		String hint = inlineMetadata(response);
+		try {
+			return hint != null ? Long.parseLong(hint) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Switches putAsync to batching mode: PUTs are buffered per server for up
+	 * to lingerMicros or maxBytes, whichever comes first, and sent as one MPUT.
+	 * Values large enough to be streamed are never buffered.
+	 */
+	public synchronized void enableWriteBatching(long lingerMicros, int maxBytes) throws IOException {
+		if (writeBatcher != null) {
+			writeBatcher.close();
+		}
+		writeBatcher = new WriteBatcher(asyncComm(), lingerMicros, Math.min(maxBytes, MAX_BATCH_FRAME_CHARS));
+	}
+
+	/* Sends any PUTs still lingering in the batching buffers */
+	public void flushWrites() {
+		WriteBatcher batcher = writeBatcher;
+		if (batcher != null) {
+			batcher.flushAll();
+		}
+	}
+
+	private synchronized AsyncKVCommunication asyncComm() throws IOException {
+		if (asyncComm == null) {
+			asyncComm = new AsyncKVCommunication();
+		}
+		return asyncComm;
+	}
+
+	private String configuredServer() {
+		return serverAddress + ":" + serverPort;
+	}
+
+	/* {address, port} of the given "host:port", the configured server if it is unknown */
+	private String[] hostFor(String host) {
+		return host != null ? host.split(":") : new String[]{serverAddress, Integer.toString(serverPort)};
+	}
+
+	/* Concurrent misrouted requests share one KEYRANGE_DELTA round trip, KEYRANGE only if the delta is unusable */
+	private synchronized CompletableFuture<Void> refreshMetadataAsync(final String[] host) {
+		if (metadataRefresh != null && !metadataRefresh.isDone()) {
+			return metadataRefresh;
+		}
+		final CompletableFuture<Void> refresh = new CompletableFuture<Void>();
+		metadataRefresh = refresh;
+		try {
+			asyncComm().send(host[0], Integer.parseInt(host[1]), StatusType.KEYRANGE_DELTA, Long.toString(currentEpoch()), null)
+				.whenComplete(new BiConsumer<SimpleKVMessage, Throwable>() {
+					@Override
+					public void accept(SimpleKVMessage response, Throwable error) {
+						if (error == null && response.getStatus() == StatusType.KEYRANGE_DELTA_SUCCESS
+								&& applyDelta(response.getPayload())) {
+							refresh.complete(null);
+						} else {
+							fetchKeyrangeAsync(host, refresh);
+						}
+					}
+				});
+		} catch (IOException e) {
+			refresh.complete(null);
+		}
+		return refresh;
+	}
+
+	private void fetchKeyrangeAsync(String[] host, final CompletableFuture<Void> refresh) {
+		try {
+			asyncComm().send(host[0], Integer.parseInt(host[1]), StatusType.KEYRANGE, null, null)
+				.whenComplete(new BiConsumer<SimpleKVMessage, Throwable>() {
+					@Override
+					public void accept(SimpleKVMessage response, Throwable error) {
+						if (error == null && response.getStatus() == StatusType.KEYRANGE_SUCCESS) {
+							updateMetadata(response.getPayload(), response.getEpoch());
+						}
+						refresh.complete(null);
+					}
+				});
+		} catch (IOException e) {
+			refresh.complete(null);
+		}
+	}
+
+	@Override
+	public Map<String, KVMessage> mget(Collection<String> keys) throws SocketException, Exception {
+		List<String[]> entries = new ArrayList<String[]>();
+		for (String key : keys) {
+			entries.add(new String[]{key});
+		}
+		return sendBatchWithRetry(StatusType.MGET, entries);
+	}
+
+	@Override
+	public Map<String, KVMessage> mput(Map<String, String> pairs) throws SocketException, Exception {
+		List<String[]> entries = new ArrayList<String[]>();
+		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+			entries.add(new String[]{pair.getKey(), pair.getValue()});
+		}
+		return sendBatchWithRetry(StatusType.MPUT, entries);
+	}
+
+	@Override
+	public Map<String, KVMessage> mdelete(Collection<String> keys) throws SocketException, Exception {
+		List<String[]> entries = new ArrayList<String[]>();
+		for (String key : keys) {
+			entries.add(new String[]{key});
+		}
+		return sendBatchWithRetry(StatusType.MDELETE, entries);
+	}
+
+	/* Splits the batch by responsible server (cached metadata) and sends one frame per server.
+	 * Keys a server reports as SERVER_NOT_RESPONSIBLE are re-routed after a metadata refresh. */
+	private Map<String, KVMessage> sendBatchWithRetry(StatusType op, List<String[]> entries) throws SocketException, Exception {
+		Map<String, KVMessage> results = new LinkedHashMap<String, KVMessage>();
+		Map<String, String[]> entriesByKey = new HashMap<String, String[]>();
+		for (String[] entry : entries) {
+			if (!isEncodable(entry)) {
+				// The receiver would drop characters and read the fields after them out of place
+				logger.error("Key " + entry[0] + " cannot be batched, it holds characters outside printable ASCII");
+				results.put(entry[0], new SimpleKVMessage(batchErrorOf(op), entry[0], null));
+				continue;
+			}
+			results.put(entry[0], null);
+			entriesByKey.put(entry[0], entry);
+		}
+
+		List<String[]> pending = new ArrayList<String[]>(entriesByKey.values());
+		for (int attempt = 0; attempt < MAX_BATCH_ATTEMPTS && !pending.isEmpty(); attempt++) {
+			if (attempt > 0) {
+				refreshMetadataFromAnyServer(null);
+			}
+			List<String[]> misrouted = new ArrayList<String[]>();
+			for (Map.Entry<String, List<String[]>> group : groupByServer(pending).entrySet()) {
+				List<List<String[]>> frames = splitFrames(group.getValue());
+				for (int i = 0; i < frames.size(); i++) {
+					List<String[]> frame = frames.get(i);
+					SimpleKVMessage response;
+					try {
+						response = send(connectionFor(group.getKey()), new SimpleKVMessage(op, SimpleKVBatch.encode(frame)));
+					} catch (IOException e) {
+						if (group.getKey() == null || attempt == MAX_BATCH_ATTEMPTS - 1) {
+							throw e;
+						}
+						// The server may have left or failed, its unanswered frames go out again under the refreshed ring
+						logger.warn("Batch to " + group.getKey() + " failed: " + e.getMessage());
+						for (List<String[]> unanswered : frames.subList(i, frames.size())) {
+							misrouted.addAll(unanswered);
+						}
+						break;
+					}
+					if (response == null || response.getStatus() != StatusType.BATCH_RESULT) {
+						// Whole frame rejected, e.g. SERVER_STOPPED or SERVER_WRITE_LOCK
+						StatusType status = response != null ? response.getStatus() : StatusType.PUT_ERROR;
+						for (String[] entry : frame) {
+							results.put(entry[0], new SimpleKVMessage(status, entry[0], null));
+						}
+						continue;
+					}
+					for (String[] result : SimpleKVBatch.decode(response.getPayload(), SimpleKVBatch.arityOf(StatusType.BATCH_RESULT))) {
+						StatusType status = StatusType.valueOf(result[0]);
+						results.put(result[1], new SimpleKVMessage(status, result[1], result[2]));
+						if (status == StatusType.SERVER_NOT_RESPONSIBLE && entriesByKey.containsKey(result[1])) {
+							misrouted.add(entriesByKey.get(result[1]));
+						}
+					}
+				}
+			}
+			pending = misrouted;
+		}
+		logger.info("Completed " + op + " batch of " + entries.size() + " keys");
+		return results;
+	}
+
+	private static boolean isEncodable(String[] entry) {
+		for (String field : entry) {
+			if (!SimpleKVBatch.isEncodable(field)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static StatusType batchErrorOf(StatusType op) {
+		switch (op) {
+			case MGET:
+				return StatusType.GET_ERROR;
+			case MDELETE:
+				return StatusType.DELETE_ERROR;
+			default:
+				return StatusType.PUT_ERROR;
+		}
+	}
+
+	/* Groups entries by "host:port" of the responsible server, null meaning the current connection */
+	private Map<String, List<String[]>> groupByServer(List<String[]> entries) {
+		Map<String, List<String[]>> groups = new LinkedHashMap<String, List<String[]>>();
+		for (String[] entry : entries) {
+			String host = serverFor(entry[0]);
+			List<String[]> group = groups.get(host);
+			if (group == null) {
+				group = new ArrayList<String[]>();
+				groups.put(host, group);
+			}
+			group.add(entry);
+		}
+		return groups;
+	}
+
+	/* Keeps each batch frame well below the receiver's DROP_SIZE */
+	private static List<List<String[]>> splitFrames(List<String[]> entries) {
+		List<List<String[]>> frames = new ArrayList<List<String[]>>();
+		List<String[]> frame = new ArrayList<String[]>();
+		int frameChars = 0;
+		for (String[] entry : entries) {
+			int entryChars = 0;
+			for (String field : entry) {
+				entryChars += (field != null ? field.length() : 0) + 8;
+			}
+			if (!frame.isEmpty() && frameChars + entryChars > MAX_BATCH_FRAME_CHARS) {
+				frames.add(frame);
+				frame = new ArrayList<String[]>();
+				frameChars = 0;
+			}
+			frame.add(entry);
+			frameChars += entryChars;
+		}
+		if (!frame.isEmpty()) {
+			frames.add(frame);
+		}
+		return frames;
+	}
+
+	/* Fetches only what changed since the cached ring, the whole metadata if the server cannot tell */
+	private void refreshMetadata(KVCommunication comm) throws SocketException, Exception {
+		SimpleKVMessage deltaRes = send(comm, StatusType.KEYRANGE_DELTA, Long.toString(currentEpoch()), null);
+		if (deltaRes == null || deltaRes.getStatus() != StatusType.KEYRANGE_DELTA_SUCCESS || !applyDelta(deltaRes.getPayload())) {
+			SimpleKVMessage keyrangeRes = send(comm, StatusType.KEYRANGE, null, null);
+			if (keyrangeRes != null && keyrangeRes.getStatus() == StatusType.KEYRANGE_SUCCESS) {
+				updateMetadata(keyrangeRes.getPayload(), keyrangeRes.getEpoch());
+			}
+		}
+		pruneConnections();
+	}
+
+	/**
+	 * Refreshes the ring from the configured server, or from any other server
+	 * of the cached ring if that one is unreachable, e.g. because it left.
+	 * @param failedHost "host:port" known to be unreachable, null if none
+	 */
+	private void refreshMetadataFromAnyServer(String failedHost) throws SocketException, Exception {
+		List<String> candidates = new ArrayList<String>();
+		candidates.add(configuredServer());
+		MetadataRing current = ring;
+		if (current != null) {
+			for (String server : current.getServers()) {
+				if (!candidates.contains(server)) {
+					candidates.add(server);
+				}
+			}
+		}
+		candidates.remove(failedHost);
+		IOException lastError = new IOException("No server to fetch metadata from");
+		for (String host : candidates) {
+			try {
+				refreshMetadata(connectionFor(host));
+				return;
+			} catch (IOException e) {
+				logger.warn("Unable to fetch metadata from " + host + ": " + e.getMessage());
+				lastError = e;
+			}
+		}
+		throw lastError;
+	}
+
+	/* Closes pooled connections to servers that are no longer on the ring, once their current request is done.
+	 * The configured server's stays until it fails, it may be known under another name than on the ring. */
+	private void pruneConnections() {
+		MetadataRing current = ring;
+		if (current == null) {
+			return;
+		}
+		Set<String> servers = current.getServers();
+		for (Map.Entry<String, KVCommunication> entry : connections.entrySet()) {
+			if (!servers.contains(entry.getKey()) && !entry.getKey().equals(configuredServer())
+					&& connections.remove(entry.getKey(), entry.getValue())) {
+				synchronized (entry.getValue()) {
+					entry.getValue().closeConnection();
+				}
+				logger.info("Closed pooled connection to " + entry.getKey() + ", it left the ring");
+			}
+		}
+	}
+
+	/**
+	 * Replaces the ring unless the metadata is older than the cached one.
+	 * @return true if the metadata was usable
+	 */
+	private synchronized boolean updateMetadata(String metadata, long epoch) {
+		try {
+			MetadataRing parsed = MetadataRing.parse(metadata, epoch);
+			if (parsed == null) {
+				return false;
+			}
+			if (ring == null || epoch == SimpleKVMessage.NO_EPOCH || epoch >= ring.getEpoch()) {
+				ring = parsed;
+			}
+			return true;
+		} catch (IllegalArgumentException e) {
+			logger.error("Ignoring malformed metadata: " + metadata);
+			return false;
+		}
+	}
+
+	/**
+	 * Applies ring changes to the cached ring, or replaces it with a snapshot.
+	 * @return false if the delta does not fit the cached ring
+	 */
+	private synchronized boolean applyDelta(String encoded) {
+		try {
+			RingDelta delta = RingDelta.decode(encoded);
+			if (ring != null && delta.getEpoch() < ring.getEpoch()) {
+				return true; // the cached ring is newer already
+			}
+			MetadataRing applied = MetadataRing.of((ring != null ? ring.getVersion() : VersionedRing.EMPTY).apply(delta));
+			if (applied == null) {
+				return false;
+			}
+			ring = applied;
+			return true;
+		} catch (IllegalArgumentException e) {
+			logger.error("Ignoring unusable ring delta: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private long currentEpoch() {
+		MetadataRing current = ring;
+		return current != null ? current.getEpoch() : SimpleKVMessage.NO_EPOCH;
+	}
+
+	/* SERVER_NOT_RESPONSIBLE for a single request carries the metadata (SERVER_WRITE_LOCK its unlock hint),
+	 * per-key batch results do not */
+	private static String inlineMetadata(SimpleKVMessage response) {
+		return response.getKey() == null ? response.getPayload() : null;
+	}
+
+	/* True if the server answered with a newer metadata epoch than the cached ring */
+	private boolean isStale(SimpleKVMessage response) {
+		MetadataRing current = ring;
+		return current == null ? response.getEpoch() != SimpleKVMessage.NO_EPOCH : current.isStale(response.getEpoch());
+	}
+
 	public SimpleKVMessage keyrange() throws SocketException, Exception {
-		SimpleKVMessage response = kvComm.sendMessage(StatusType.KEYRANGE, null, null);
+		SimpleKVMessage response = send(connectionFor(null), StatusType.KEYRANGE, null, null);
 		return response;
 	}
 
-	/* Parse metadata string to find the responsible server */
-	private static String findResponsibleServer(String metadata, String key) {
-		String[] nodes = metadata.split(";");
-		String keyHash = ConsistentHashing.getKeyHash(key);
-		// String keyHash = key;
-		
-		for (String node : nodes) {
-			String[] nodeDetails = node.split(",");
-			String nodeHost = nodeDetails[2];
+	/* "host:port" of the responsible server under the cached ring, null if no metadata is known yet */
+	private String serverFor(String key) {
+		MetadataRing current = ring;
+		return current != null ? current.serverFor(key) : null;
+	}
 
-			String[] hashrange = {nodeDetails[0], nodeDetails[1]};
-			
-			if (ConsistentHashing.isKeyInRange(keyHash, hashrange)) {
-				return nodeHost;
-			}
+	/* A GET goes to the owner or one of the servers after it holding a copy, misrouted ones are retried at the owner */
+	private String readServerFor(String key) {
+		MetadataRing current = ring;
+		if (current == null || readReplicas <= 1) {
+			return serverFor(key);
 		}
-		return null;
+		List<String> replicas = current.replicasFor(key, readReplicas);
+		return replicas.get(ThreadLocalRandom.current().nextInt(replicas.size()));
+	}
+
+	/**
+	 * Spreads GETs over the owner of each key and the servers holding its
+	 * copies, at most replicas servers in all, to share the read load of hot
+	 * ranges. A copy may lag behind the owner unless writes wait for all
+	 * replicas. 1, the default, reads from the owner only.
+	 */
+	public void setReadReplicas(int replicas) {
+		this.readReplicas = Math.max(1, replicas);
 	}
 
 	public void reconnect(String address, int port) throws SocketException, Exception {
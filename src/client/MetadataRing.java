@@ -0,0 +1,127 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import ecs.Hash128;
+import ecs.VersionedRing;
+import shared.messages.SimpleKVMessage;
+
+/**
+ * Immutable client view of the hash ring, built once from a ring version.
+ * Range low bounds are kept sorted as two long arrays, so the server
+ * responsible for a key is found with a binary floor search; a hash below
+ * every low bound belongs to the range that wraps around the ring.
+ */
+public final class MetadataRing {
+
+	private final long[] lowHi;
+	private final long[] lowLo;
+	private final String[] servers;
+	private final VersionedRing version;
+
+	private MetadataRing(VersionedRing version) {
+		int size = version.getTokens().size();
+		this.lowHi = new long[size];
+		this.lowLo = new long[size];
+		this.servers = new String[size];
+		// A range starts at the previous token, so each token is the low bound of the next token's range
+		List<String> owners = new ArrayList<String>(version.getTokens().values());
+		int i = 0;
+		for (String token : version.getTokens().keySet()) {
+			Hash128 low = Hash128.fromHex(token);
+			lowHi[i] = low.getHi();
+			lowLo[i] = low.getLo();
+			servers[i] = owners.get((i + 1) % size);
+			i++;
+		}
+		this.version = version;
+	}
+
+	public static MetadataRing parse(String metadata) {
+		return parse(metadata, SimpleKVMessage.NO_EPOCH);
+	}
+
+	/**
+	 * @return the parsed ring, or null if the metadata holds no ranges
+	 * @throws IllegalArgumentException if an entry is malformed
+	 */
+	public static MetadataRing parse(String metadata, long epoch) {
+		if (metadata == null) {
+			return null;
+		}
+		return of(VersionedRing.parse(metadata, epoch));
+	}
+
+	/**
+	 * @return the ring, or null if the version holds no ranges
+	 */
+	public static MetadataRing of(VersionedRing version) {
+		return version.isEmpty() ? null : new MetadataRing(version);
+	}
+
+	/**
+	 * @return "host:port" of the server responsible for the key
+	 */
+	public String serverFor(String key) {
+		Hash128 hash = Hash128.of(key);
+		long hi = hash.getHi();
+		long lo = hash.getLo();
+		// Index of the greatest low bound <= hash
+		int left = 0;
+		int right = servers.length - 1;
+		int floor = -1;
+		while (left <= right) {
+			int mid = (left + right) >>> 1;
+			if (Hash128.compare(lowHi[mid], lowLo[mid], hi, lo) <= 0) {
+				floor = mid;
+				left = mid + 1;
+			} else {
+				right = mid - 1;
+			}
+		}
+		return servers[floor >= 0 ? floor : servers.length - 1];
+	}
+
+	/**
+	 * @return "host:port" of the key's owner followed by the next distinct
+	 *         servers on the ring, which hold its copies, at most count in all
+	 */
+	public List<String> replicasFor(String key, int count) {
+		return version.replicasFor(key, count);
+	}
+
+	/**
+	 * @return "host:port" of every server on the ring
+	 */
+	public Set<String> getServers() {
+		return new LinkedHashSet<String>(Arrays.asList(servers));
+	}
+
+	public int size() {
+		return servers.length;
+	}
+
+	/**
+	 * @return true if a response stamped with the given epoch saw newer metadata than this ring
+	 */
+	public boolean isStale(long responseEpoch) {
+		return responseEpoch != SimpleKVMessage.NO_EPOCH && responseEpoch > getEpoch();
+	}
+
+	public long getEpoch() {
+		return version.getEpoch();
+	}
+
+	public String getMetadata() {
+		return version.toMetadata();
+	}
+
+	/* The tokens behind this view, ring deltas apply to them */
+	public VersionedRing getVersion() {
+		return version;
+	}
+}
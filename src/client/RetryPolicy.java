@@ -0,0 +1,65 @@
+package client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * How KVStore retries requests rejected with SERVER_WRITE_LOCK, and
+ * optionally SERVER_STOPPED: exponential backoff with full jitter, bounded by
+ * a per-request deadline. A server hint for when its write lock clears is
+ * used as the lower bound of the wait. SERVER_STOPPED is handed straight back
+ * unless asked for, since a server that is not configured yet may stay
+ * stopped far longer than any deadline.
+ */
+public class RetryPolicy {
+
+	public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0);
+
+	private final long baseDelayMs;
+	private final long maxDelayMs;
+	private final long deadlineMs;
+	private final boolean retryStopped;
+
+	public RetryPolicy(long baseDelayMs, long maxDelayMs, long deadlineMs) {
+		this(baseDelayMs, maxDelayMs, deadlineMs, false);
+	}
+
+	/**
+	 * @param baseDelayMs wait before the first retry, doubled on every attempt
+	 * @param maxDelayMs upper bound of a single wait
+	 * @param deadlineMs total time after which the last response is returned, 0 disables retries
+	 * @param retryStopped whether SERVER_STOPPED is retried as well as SERVER_WRITE_LOCK
+	 */
+	public RetryPolicy(long baseDelayMs, long maxDelayMs, long deadlineMs, boolean retryStopped) {
+		this.baseDelayMs = baseDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.deadlineMs = deadlineMs;
+		this.retryStopped = retryStopped;
+	}
+
+	public static RetryPolicy defaults() {
+		return new RetryPolicy(20, 1000, 5000);
+	}
+
+	public boolean isRetryable(StatusType status) {
+		return deadlineMs > 0
+				&& (status == StatusType.SERVER_WRITE_LOCK || (retryStopped && status == StatusType.SERVER_STOPPED));
+	}
+
+	/**
+	 * @param attempt number of retries done so far
+	 * @param hintMs server estimate until the write lock clears, negative if unknown
+	 * @return how long to wait before the next attempt
+	 */
+	public long delayFor(int attempt, long hintMs) {
+		long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt, 20));
+		// Jitter spreads clients that were rejected together
+		long delay = ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+		return Math.max(delay, Math.min(hintMs, maxDelayMs));
+	}
+
+	public long getDeadlineMs() {
+		return deadlineMs;
+	}
+}
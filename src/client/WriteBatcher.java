@@ -0,0 +1,198 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+import shared.messages.SimpleKVBatch;
+import shared.messages.SimpleKVMessage;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * Buffers PUTs per destination server and sends them as one MPUT frame once
+ * the linger time has passed or the buffered entries reach maxBytes,
+ * whichever comes first. Every buffered PUT gets its own future, completed
+ * from the matching entry of the BATCH_RESULT.
+ */
+public class WriteBatcher {
+
+	private Logger logger = Logger.getRootLogger();
+
+	private final AsyncKVCommunication comm;
+	private final long lingerMicros;
+	private final int maxBytes;
+	private final Map<String, Batch> batches = new HashMap<String, Batch>();
+	/* sent frames whose futures are not completed yet */
+	private final Set<CompletableFuture<?>> inFlight = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService timer;
+
+	public WriteBatcher(AsyncKVCommunication comm, long lingerMicros, int maxBytes) {
+		this.comm = comm;
+		this.lingerMicros = lingerMicros;
+		this.maxBytes = maxBytes;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kvstore-batcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues a PUT (a null value deletes) for the server at "host:port".
+	 * @return future completed with the per-key result of the batch
+	 */
+	public CompletableFuture<SimpleKVMessage> put(final String host, String key, String value) {
+		if (!SimpleKVBatch.isEncodable(key) || !SimpleKVBatch.isEncodable(value)) {
+			logger.error("Key " + key + " cannot be batched, it holds characters outside printable ASCII");
+			return CompletableFuture.completedFuture(new SimpleKVMessage(StatusType.PUT_ERROR, key, null));
+		}
+		CompletableFuture<SimpleKVMessage> result = new CompletableFuture<SimpleKVMessage>();
+		Batch full = null;
+		synchronized (this) {
+			Batch batch = batches.get(host);
+			if (batch == null) {
+				batch = new Batch();
+				batches.put(host, batch);
+				final Batch scheduled = batch;
+				timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush(host, scheduled);
+					}
+				}, lingerMicros, TimeUnit.MICROSECONDS);
+			}
+			batch.entries.add(new String[]{key, value});
+			batch.results.add(result);
+			batch.bytes += key.length() + (value != null ? value.length() : 0) + 8;
+			if (batch.bytes >= maxBytes) {
+				batches.remove(host);
+				full = batch;
+			}
+		}
+		if (full != null) {
+			send(host, full);
+		}
+		return result;
+	}
+
+	/* Sends everything buffered so far, e.g. before disconnecting */
+	public void flushAll() {
+		Map<String, Batch> pending;
+		synchronized (this) {
+			pending = new HashMap<String, Batch>(batches);
+			batches.clear();
+		}
+		for (Map.Entry<String, Batch> batch : pending.entrySet()) {
+			send(batch.getKey(), batch.getValue());
+		}
+	}
+
+	public void close() {
+		flushAll();
+		timer.shutdown();
+	}
+
+	/**
+	 * Sends everything buffered and waits up to timeoutMs until every sent
+	 * batch has been answered and its futures completed.
+	 * @return false if some batches were still unanswered at the timeout
+	 */
+	public boolean close(long timeoutMs) {
+		close();
+		CompletableFuture<?>[] pending = inFlight.toArray(new CompletableFuture<?>[0]);
+		try {
+			CompletableFuture.allOf(pending).get(timeoutMs, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			logger.warn(inFlight.size() + " batches still unanswered after " + timeoutMs + " ms");
+			return false;
+		} catch (ExecutionException e) {
+			return true; // failed batches have failed their futures already
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/* Linger expired; the batch may already have been sent because it filled up */
+	private void flush(String host, Batch batch) {
+		synchronized (this) {
+			if (batches.get(host) != batch) {
+				return;
+			}
+			batches.remove(host);
+		}
+		send(host, batch);
+	}
+
+	private void send(String host, final Batch batch) {
+		String[] hostDetails = host.split(":");
+		SimpleKVMessage frame = new SimpleKVMessage(StatusType.MPUT, SimpleKVBatch.encode(batch.entries));
+		logger.info("Flushing " + batch.entries.size() + " buffered writes to " + host);
+		final CompletableFuture<SimpleKVMessage> done = comm.send(hostDetails[0], Integer.parseInt(hostDetails[1]), frame)
+			.whenComplete(new BiConsumer<SimpleKVMessage, Throwable>() {
+				@Override
+				public void accept(SimpleKVMessage response, Throwable error) {
+					complete(batch, response, error);
+				}
+			});
+		inFlight.add(done);
+		done.whenComplete(new BiConsumer<SimpleKVMessage, Throwable>() {
+			@Override
+			public void accept(SimpleKVMessage response, Throwable error) {
+				inFlight.remove(done);
+			}
+		});
+	}
+
+	private void complete(Batch batch, SimpleKVMessage response, Throwable error) {
+		if (error != null) {
+			for (CompletableFuture<SimpleKVMessage> result : batch.results) {
+				result.completeExceptionally(error);
+			}
+			return;
+		}
+		List<String[]> results = null;
+		if (response.getStatus() == StatusType.BATCH_RESULT) {
+			try {
+				results = SimpleKVBatch.decode(response.getPayload(), SimpleKVBatch.arityOf(StatusType.BATCH_RESULT));
+			} catch (IllegalArgumentException e) {
+				logger.error("Malformed batch result: " + e.getMessage());
+			}
+		}
+		for (int i = 0; i < batch.entries.size(); i++) {
+			String key = batch.entries.get(i)[0];
+			SimpleKVMessage message;
+			if (results != null && i < results.size()) {
+				message = new SimpleKVMessage(StatusType.valueOf(results.get(i)[0]), key, results.get(i)[2]);
+			} else {
+				// Whole frame rejected, e.g. SERVER_STOPPED or SERVER_WRITE_LOCK
+				StatusType status = response.getStatus() != StatusType.BATCH_RESULT ? response.getStatus() : StatusType.PUT_ERROR;
+				message = new SimpleKVMessage(status, key, null);
+			}
+			batch.results.get(i).complete(message.withEpoch(response.getEpoch()));
+		}
+	}
+
+	private static class Batch {
+		final List<String[]> entries = new ArrayList<String[]>();
+		final List<CompletableFuture<SimpleKVMessage>> results = new ArrayList<CompletableFuture<SimpleKVMessage>>();
+		int bytes;
+	}
+}
@@ -0,0 +1,134 @@
+package client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parks async writes rejected with SERVER_WRITE_LOCK, per server. Only one
+ * parked write probes the server after the backoff delay; once a retried
+ * write to that server gets through, all parked writes are released
+ * together. This keeps clients from hammering a locked server with every
+ * pending write. While writes stay parked, the next one probes after the
+ * next backoff delay, whatever became of the previous probe: it may have
+ * been routed to another server since the ring changed.
+ */
+class WriteLockQueue {
+
+	private final ScheduledExecutorService scheduler;
+	private final RetryPolicy policy;
+	private final Map<String, HostQueue> queues = new HashMap<String, HostQueue>();
+
+	WriteLockQueue(ScheduledExecutorService scheduler, RetryPolicy policy) {
+		this.scheduler = scheduler;
+		this.policy = policy;
+	}
+
+	/**
+	 * @param retry re-sends the write
+	 * @param expire completes the write with its last response once the deadline has passed
+	 */
+	void park(final String host, Runnable retry, Runnable expire, long deadline, long hintMs) {
+		synchronized (this) {
+			HostQueue queue = queues.get(host);
+			if (queue == null) {
+				queue = new HostQueue();
+				queues.put(host, queue);
+			}
+			queue.parked.add(new Parked(retry, expire, deadline));
+			if (!queue.probeScheduled) {
+				scheduleProbe(host, queue, hintMs);
+			}
+		}
+	}
+
+	/* Must hold the lock */
+	private void scheduleProbe(final String host, HostQueue queue, long hintMs) {
+		queue.probeScheduled = true;
+		long delay = policy.delayFor(queue.attempt++, hintMs);
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				probe(host);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/* A retried write to the host got past the write lock (or failed otherwise), release everything */
+	void unlocked(String host) {
+		List<Parked> released;
+		synchronized (this) {
+			HostQueue queue = queues.remove(host);
+			if (queue == null) {
+				return;
+			}
+			released = new ArrayList<Parked>(queue.parked);
+		}
+		for (Parked parked : released) {
+			parked.run();
+		}
+	}
+
+	private void probe(String host) {
+		List<Parked> expired = new ArrayList<Parked>();
+		Parked probe = null;
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			HostQueue queue = queues.get(host);
+			if (queue == null) {
+				return;
+			}
+			queue.probeScheduled = false;
+			while (!queue.parked.isEmpty() && probe == null) {
+				Parked parked = queue.parked.poll();
+				if (parked.deadline <= now) {
+					expired.add(parked);
+				} else {
+					probe = parked;
+				}
+			}
+			if (!queue.parked.isEmpty()) {
+				scheduleProbe(host, queue, -1);
+			} else if (probe == null) {
+				queues.remove(host);
+			}
+		}
+		for (Parked parked : expired) {
+			parked.expire.run();
+		}
+		if (probe != null) {
+			// Parks again on SERVER_WRITE_LOCK, behind the writes still waiting
+			probe.retry.run();
+		}
+	}
+
+	private static class HostQueue {
+		final ArrayDeque<Parked> parked = new ArrayDeque<Parked>();
+		boolean probeScheduled;
+		int attempt;
+	}
+
+	private static class Parked {
+		final Runnable retry;
+		final Runnable expire;
+		final long deadline;
+
+		Parked(Runnable retry, Runnable expire, long deadline) {
+			this.retry = retry;
+			this.expire = expire;
+			this.deadline = deadline;
+		}
+
+		void run() {
+			if (deadline <= System.currentTimeMillis()) {
+				expire.run();
+			} else {
+				retry.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package ecs;
+
+/**
+ * How many copies of a write must be stored before the client is answered.
+ * The write on the server owning the key counts as one copy.
+ */
+public enum AckMode {
+    ONE,    /* the owner's write, replicas catch up in the background */
+    QUORUM, /* a majority of the copies */
+    ALL;    /* every copy */
+
+    /**
+     * @param copies servers holding the key, its owner included
+     * @return copies that must be written before the client is answered
+     */
+    public int required(int copies) {
+        switch (this) {
+            case ONE:
+                return Math.min(1, copies);
+            case QUORUM:
+                return copies / 2 + 1;
+            default:
+                return copies;
+        }
+    }
+}
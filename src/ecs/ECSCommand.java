@@ -0,0 +1,30 @@
+package ecs;
+
+/**
+ * Commands the ECS sends to a KVServer over its control channel.
+ *
+ * Wire format (one line each way):
+ *   ECS -> KVServer:  secret <id> <COMMAND> [args]
+ *   KVServer -> ECS:  ACK <id> OK [payload]  |  ACK <id> ERROR [reason]
+ */
+public enum ECSCommand {
+    SET_CONFIG,                  /* args: lowerHash upperHash [lowerHash upperHash ...] */
+    SET_METADATA,                /* args: serialized metadata */
+    PREPARE_CONFIG,              /* args: epoch ringDelta low high [low high ...], staged until COMMIT_CONFIG */
+    COMMIT_CONFIG,               /* args: epoch, switches to the ranges and metadata prepared for it */
+    SET_WRITE_LOCK,              /* args: true | false */
+    LOCK_RANGES,                 /* args: low high [low high ...] to refuse writes to those ranges only, none to unlock */
+    ECS_REQUEST_STORAGE_HANDOFF, /* reply payload: serialized storage (key=value;...) */
+    PUT_KV_BATCH,                /* args: key/value fields as in a batch payload, a null value deletes; applied regardless of the write lock, persisted once */
+    MOVE_RANGE,                  /* args: targetHost targetAdminPort low high [low high ...], reply payload: records moved */
+    DROP_RANGE,                  /* args: low high [low high ...], reply payload: records dropped */
+    ABORT_MOVE,                  /* args: low high [low high ...], stops moving those ranges and keeps their records, reply payload: migrations stopped */
+    PING,                        /* heartbeat, answered right away even while a migration runs */
+    SET_REPLICATION,             /* args: factor ackMode [host:port adminPort ...], the admin ports replicas are reached on */
+    PUT_REPLICAS;                /* args: key/value fields as in a batch payload, sent by the owner of the keys to their replicas */
+
+    public static final String SECRET_TOKEN = "secret";
+    public static final String ACK = "ACK";
+    public static final String OK = "OK";
+    public static final String ERROR = "ERROR";
+}
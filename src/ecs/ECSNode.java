@@ -1,13 +1,19 @@
 package ecs;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class ECSNode implements IECSNode {
     private String nodeName;
     private String nodeHost;
     private int nodePort;
+    private int adminPort = -1; // port of the node's ECS control listener, -1 if not announced
     private String cacheStrategy;
     private int cacheSize;
+    private int weight = 1; // capacity relative to other nodes, scales the node's tokens on the ring
     private String hashRangeLower; // Lower bound of the hash range
     private String hashRangeUpper; // Upper bound of the hash range
+    private List<String[]> hashRanges = new ArrayList<String[]>(); // one {lower, upper} per virtual node
 
     public ECSNode(String nodeName, String nodeHost, int nodePort, String cacheStrategy, int cacheSize, String lower, String upper) {
         this.nodeName = nodeName;
@@ -17,11 +23,49 @@ public class ECSNode implements IECSNode {
         this.cacheSize = cacheSize;
         this.hashRangeLower = lower;
         this.hashRangeUpper = upper;
+        if (lower != null && upper != null) {
+            this.hashRanges.add(new String[]{lower, upper});
+        }
+    }
+
+    public void setAdminPort(int adminPort) {
+        this.adminPort = adminPort;
+    }
+
+    public int getAdminPort() {
+        return this.adminPort;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = Math.max(1, weight);
+    }
+
+    public int getWeight() {
+        return this.weight;
     }
 
     public void setHashRange(String lowerBound, String upperBound) {
-        this.hashRangeLower = lowerBound;
-        this.hashRangeUpper = upperBound;
+        clearHashRanges();
+        addHashRange(lowerBound, upperBound);
+    }
+
+    public void clearHashRanges() {
+        this.hashRanges = new ArrayList<String[]>();
+        this.hashRangeLower = null;
+        this.hashRangeUpper = null;
+    }
+
+    /* With virtual nodes a node owns several ranges, the first one is also reported by getNodeHashRange() */
+    public void addHashRange(String lowerBound, String upperBound) {
+        if (hashRanges.isEmpty()) {
+            this.hashRangeLower = lowerBound;
+            this.hashRangeUpper = upperBound;
+        }
+        this.hashRanges.add(new String[]{lowerBound, upperBound});
+    }
+
+    public List<String[]> getNodeHashRanges() {
+        return new ArrayList<String[]>(hashRanges);
     }
 
 
@@ -0,0 +1,136 @@
+package ecs;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A 128-bit MD5 ring position held as two longs and compared unsigned, so
+ * hashing and range checks need neither BigInteger nor hex Strings.
+ */
+public final class Hash128 implements Comparable<Hash128> {
+
+    private final long hi;
+    private final long lo;
+
+    public Hash128(long hi, long lo) {
+        this.hi = hi;
+        this.lo = lo;
+    }
+
+    public static Hash128 of(String key) {
+        Digester digester = DIGESTER.get();
+        digester.digest(key);
+        return new Hash128(digester.hi, digester.lo);
+    }
+
+    /**
+     * @throws NumberFormatException if the text is not at most 32 hex digits
+     */
+    public static Hash128 fromHex(String hex) {
+        if (hex.length() > 32) {
+            throw new NumberFormatException("Hash longer than 128 bits: " + hex);
+        }
+        int split = Math.max(0, hex.length() - 16);
+        long hi = split > 0 ? Long.parseUnsignedLong(hex.substring(0, split), 16) : 0;
+        long lo = Long.parseUnsignedLong(hex.substring(split), 16);
+        return new Hash128(hi, lo);
+    }
+
+    public long getHi() {
+        return hi;
+    }
+
+    public long getLo() {
+        return lo;
+    }
+
+    public String toHex() {
+        return String.format("%016x%016x", hi, lo);
+    }
+
+    public static int compare(long hi1, long lo1, long hi2, long lo2) {
+        int c = Long.compareUnsigned(hi1, hi2);
+        return c != 0 ? c : Long.compareUnsigned(lo1, lo2);
+    }
+
+    @Override
+    public int compareTo(Hash128 other) {
+        return compare(hi, lo, other.hi, other.lo);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Hash128)) {
+            return false;
+        }
+        Hash128 other = (Hash128) o;
+        return hi == other.hi && lo == other.lo;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hi ^ (hi >>> 32) ^ lo ^ (lo >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    /* Hashes a key into hi/lo without allocating; one instance per thread */
+    static final ThreadLocal<Digester> DIGESTER = new ThreadLocal<Digester>() {
+        @Override
+        protected Digester initialValue() {
+            return new Digester();
+        }
+    };
+
+    static final class Digester {
+        private final MessageDigest md;
+        private byte[] input = new byte[64];
+        private final byte[] output = new byte[16];
+        long hi;
+        long lo;
+
+        Digester() {
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void digest(String key) {
+            int length = key.length();
+            boolean ascii = true;
+            if (length > input.length) {
+                input = new byte[Math.max(length, input.length * 2)];
+            }
+            for (int i = 0; i < length && ascii; i++) {
+                char c = key.charAt(i);
+                ascii = c < 0x80;
+                input[i] = (byte) c;
+            }
+            if (ascii) {
+                md.update(input, 0, length);
+            } else {
+                md.update(key.getBytes()); // same bytes as the previous String based hash
+            }
+            try {
+                md.digest(output, 0, output.length);
+            } catch (java.security.DigestException e) {
+                throw new RuntimeException(e);
+            }
+            hi = toLong(output, 0);
+            lo = toLong(output, 8);
+        }
+
+        private static long toLong(byte[] bytes, int offset) {
+            long value = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                value = (value << 8) | (bytes[i] & 0xFF);
+            }
+            return value;
+        }
+    }
+}
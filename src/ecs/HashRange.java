@@ -0,0 +1,70 @@
+package ecs;
+
+/**
+ * A [low, high) range of the hash ring with its bounds parsed once. Ranges
+ * with low >= high wrap around the ring; low == high covers the whole ring.
+ */
+public final class HashRange {
+
+    private final String low;
+    private final String high;
+    private final long lowHi;
+    private final long lowLo;
+    private final long highHi;
+    private final long highLo;
+    private final boolean wraps;
+
+    public HashRange(String low, String high) {
+        Hash128 lowHash = Hash128.fromHex(low);
+        Hash128 highHash = Hash128.fromHex(high);
+        this.low = low;
+        this.high = high;
+        this.lowHi = lowHash.getHi();
+        this.lowLo = lowHash.getLo();
+        this.highHi = highHash.getHi();
+        this.highLo = highHash.getLo();
+        this.wraps = lowHash.compareTo(highHash) >= 0;
+    }
+
+    /**
+     * @return the range, or null if the server has no range assigned yet
+     */
+    public static HashRange of(String[] keyRange) {
+        if (keyRange == null || keyRange[0] == null || keyRange[1] == null) {
+            return null;
+        }
+        return new HashRange(keyRange[0], keyRange[1]);
+    }
+
+    public boolean contains(Hash128 hash) {
+        return contains(hash.getHi(), hash.getLo());
+    }
+
+    public boolean contains(long hi, long lo) {
+        boolean aboveLow = Hash128.compare(hi, lo, lowHi, lowLo) >= 0;
+        boolean belowHigh = Hash128.compare(hi, lo, highHi, highLo) < 0;
+        return wraps ? aboveLow || belowHigh : aboveLow && belowHigh;
+    }
+
+    /* Two ranges on the ring share a hash exactly if one holds the other's low bound */
+    public boolean overlaps(HashRange other) {
+        return contains(other.lowHi, other.lowLo) || other.contains(lowHi, lowLo);
+    }
+
+    /**
+     * Hashes the key and checks it against the range without allocating.
+     */
+    public boolean containsKey(String key) {
+        Hash128.Digester digester = Hash128.DIGESTER.get();
+        digester.digest(key);
+        return contains(digester.hi, digester.lo);
+    }
+
+    public String getLow() {
+        return low;
+    }
+
+    public String getHigh() {
+        return high;
+    }
+}
@@ -0,0 +1,71 @@
+package ecs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ranges a server owns, one per virtual node. A key is hashed once and
+ * then checked against every range.
+ */
+public final class HashRangeSet {
+
+    private final HashRange[] ranges;
+
+    public HashRangeSet(List<HashRange> ranges) {
+        this.ranges = ranges.toArray(new HashRange[ranges.size()]);
+    }
+
+    /**
+     * @param bounds "low high" pairs, as sent with SET_CONFIG
+     * @return the ranges, or null if there are none
+     * @throws IllegalArgumentException if the bounds do not come in pairs
+     */
+    public static HashRangeSet parse(String[] bounds) {
+        if (bounds.length % 2 != 0) {
+            throw new IllegalArgumentException("Hash range bounds must come in pairs");
+        }
+        List<HashRange> ranges = new ArrayList<HashRange>();
+        for (int i = 0; i < bounds.length; i += 2) {
+            ranges.add(new HashRange(bounds[i], bounds[i + 1]));
+        }
+        return ranges.isEmpty() ? null : new HashRangeSet(ranges);
+    }
+
+    public boolean contains(Hash128 hash) {
+        return contains(hash.getHi(), hash.getLo());
+    }
+
+    public boolean contains(long hi, long lo) {
+        for (HashRange range : ranges) {
+            if (range.contains(hi, lo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean containsKey(String key) {
+        Hash128.Digester digester = Hash128.DIGESTER.get();
+        digester.digest(key);
+        return contains(digester.hi, digester.lo);
+    }
+
+    public boolean overlaps(HashRangeSet other) {
+        for (HashRange range : ranges) {
+            for (HashRange otherRange : other.ranges) {
+                if (range.overlaps(otherRange)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return ranges.length;
+    }
+
+    public HashRange get(int i) {
+        return ranges[i];
+    }
+}
@@ -0,0 +1,177 @@
+package ecs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The tokens added and removed between two ring versions, or a full
+ * snapshot of a ring for a receiver whose version is unknown or too old.
+ *
+ * Encoded compactly for the text protocols: each server address is written
+ * once and referenced by index, tokens are 16 raw bytes instead of 32 hex
+ * digits, and the binary form is sent as one Base64 word.
+ */
+public final class RingDelta {
+
+    public static final long SNAPSHOT = -1; // base epoch of a full snapshot
+    private static final byte FORMAT = 1;
+
+    private final long baseEpoch;
+    private final long epoch;
+    private final SortedMap<String, String> added; // also tokens that changed owner
+    private final SortedSet<String> removed;
+
+    private RingDelta(long baseEpoch, long epoch, SortedMap<String, String> added, SortedSet<String> removed) {
+        this.baseEpoch = baseEpoch;
+        this.epoch = epoch;
+        this.added = Collections.unmodifiableSortedMap(added);
+        this.removed = Collections.unmodifiableSortedSet(removed);
+    }
+
+    public static RingDelta snapshot(VersionedRing ring) {
+        return new RingDelta(SNAPSHOT, ring.getEpoch(), new TreeMap<String, String>(ring.getTokens()), new TreeSet<String>());
+    }
+
+    public static RingDelta between(VersionedRing from, VersionedRing to) {
+        TreeMap<String, String> added = new TreeMap<String, String>();
+        TreeSet<String> removed = new TreeSet<String>();
+        for (Map.Entry<String, String> token : to.getTokens().entrySet()) {
+            if (!token.getValue().equals(from.getTokens().get(token.getKey()))) {
+                added.put(token.getKey(), token.getValue());
+            }
+        }
+        for (String token : from.getTokens().keySet()) {
+            if (!to.getTokens().containsKey(token)) {
+                removed.add(token);
+            }
+        }
+        return new RingDelta(from.getEpoch(), to.getEpoch(), added, removed);
+    }
+
+    public boolean isSnapshot() {
+        return baseEpoch == SNAPSHOT;
+    }
+
+    public long getBaseEpoch() {
+        return baseEpoch;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public SortedMap<String, String> getAdded() {
+        return added;
+    }
+
+    public SortedSet<String> getRemoved() {
+        return removed;
+    }
+
+    public String encode() {
+        List<String> servers = new ArrayList<String>();
+        Map<String, Integer> serverIndex = new HashMap<String, Integer>();
+        for (String server : added.values()) {
+            if (!serverIndex.containsKey(server)) {
+                serverIndex.put(server, servers.size());
+                servers.add(server);
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + servers.size() * 16 + (added.size() + removed.size()) * 18);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT);
+            out.writeLong(baseEpoch);
+            out.writeLong(epoch);
+            writeCount(out, servers.size());
+            for (String server : servers) {
+                out.writeUTF(server);
+            }
+            writeCount(out, added.size());
+            for (Map.Entry<String, String> token : added.entrySet()) {
+                writeToken(out, token.getKey());
+                writeCount(out, serverIndex.get(token.getValue()));
+            }
+            writeCount(out, removed.size());
+            for (String token : removed) {
+                writeToken(out, token);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by in-memory streams
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text is not an encoded delta
+     */
+    public static RingDelta decode(String encoded) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(encoded.trim())))) {
+            if (in.readByte() != FORMAT) {
+                throw new IllegalArgumentException("Unknown ring delta format");
+            }
+            long baseEpoch = in.readLong();
+            long epoch = in.readLong();
+            String[] servers = new String[readCount(in)];
+            for (int i = 0; i < servers.length; i++) {
+                servers[i] = in.readUTF();
+            }
+            TreeMap<String, String> added = new TreeMap<String, String>();
+            for (int i = readCount(in); i > 0; i--) {
+                String token = readToken(in);
+                added.put(token, servers[readCount(in)]);
+            }
+            TreeSet<String> removed = new TreeSet<String>();
+            for (int i = readCount(in); i > 0; i--) {
+                removed.add(readToken(in));
+            }
+            return new RingDelta(baseEpoch, epoch, added, removed);
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed ring delta", e);
+        }
+    }
+
+    private static void writeToken(DataOutputStream out, String token) throws IOException {
+        Hash128 hash = Hash128.fromHex(token);
+        out.writeLong(hash.getHi());
+        out.writeLong(hash.getLo());
+    }
+
+    private static String readToken(DataInputStream in) throws IOException {
+        long hi = in.readLong();
+        return new Hash128(hi, in.readLong()).toHex();
+    }
+
+    /* Counts and indexes as 7 bits per byte, small ones take a single byte */
+    private static void writeCount(DataOutputStream out, int count) throws IOException {
+        while ((count & ~0x7F) != 0) {
+            out.writeByte((count & 0x7F) | 0x80);
+            count >>>= 7;
+        }
+        out.writeByte(count);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            count |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return count;
+            }
+        }
+        throw new IOException("Count too long");
+    }
+}
@@ -0,0 +1,51 @@
+package ecs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The latest ring versions by epoch, so a receiver that names the version
+ * it has can be sent only what changed since. Receivers further behind than
+ * the kept versions get a full snapshot.
+ */
+public final class RingHistory {
+
+    private final int capacity;
+    private final LinkedHashMap<Long, VersionedRing> rings = new LinkedHashMap<Long, VersionedRing>(); // oldest first
+    private VersionedRing current;
+
+    public RingHistory(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public synchronized void add(VersionedRing ring) {
+        rings.remove(ring.getEpoch());
+        rings.put(ring.getEpoch(), ring);
+        current = ring;
+        Iterator<Long> oldest = rings.keySet().iterator();
+        while (rings.size() > capacity) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * @return the latest ring, null before the first one is added
+     */
+    public synchronized VersionedRing current() {
+        return current;
+    }
+
+    /**
+     * @param epoch the version the receiver has, RingDelta.SNAPSHOT if none
+     * @return the changes from that version to the latest, a snapshot of the
+     *         latest if that version is not kept, or null before the first ring
+     */
+    public synchronized RingDelta since(long epoch) {
+        if (current == null) {
+            return null;
+        }
+        VersionedRing base = rings.get(epoch);
+        return base != null ? RingDelta.between(base, current) : RingDelta.snapshot(current);
+    }
+}
@@ -0,0 +1,121 @@
+package ecs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * One version of the hash ring: the token each range ends at, mapped to the
+ * server owning the range ("host:port"). A range runs from the previous
+ * token, wrapping around, up to its own token, exactly as in the metadata
+ * string ("low,high,host:port;..."), which is built from it on first use.
+ */
+public final class VersionedRing {
+
+    /* No ring yet, only a snapshot applies to it */
+    public static final VersionedRing EMPTY = new VersionedRing(RingDelta.SNAPSHOT, new TreeMap<String, String>());
+
+    private final long epoch;
+    private final NavigableMap<String, String> tokens;
+    private volatile String metadata;
+
+    public VersionedRing(long epoch, SortedMap<String, String> tokens) {
+        this.epoch = epoch;
+        this.tokens = Collections.unmodifiableNavigableMap(new TreeMap<String, String>(tokens));
+    }
+
+    /**
+     * @throws IllegalArgumentException if an entry is malformed
+     */
+    public static VersionedRing parse(String metadata, long epoch) {
+        TreeMap<String, String> tokens = new TreeMap<String, String>();
+        if (metadata != null) {
+            for (String range : metadata.split(";")) {
+                if (range.trim().isEmpty()) {
+                    continue;
+                }
+                String[] rangeDetails = range.trim().split(",");
+                if (rangeDetails.length < 3) {
+                    throw new IllegalArgumentException("Malformed metadata entry: " + range);
+                }
+                tokens.put(Hash128.fromHex(rangeDetails[1]).toHex(), rangeDetails[2]);
+            }
+        }
+        return new VersionedRing(epoch, tokens);
+    }
+
+    /**
+     * @return the ring after the change
+     * @throws IllegalArgumentException if the delta is neither a snapshot nor based on this version
+     */
+    public VersionedRing apply(RingDelta delta) {
+        if (delta.isSnapshot()) {
+            return new VersionedRing(delta.getEpoch(), delta.getAdded());
+        }
+        if (delta.getBaseEpoch() != epoch) {
+            throw new IllegalArgumentException("Delta from epoch " + delta.getBaseEpoch() + " does not apply to epoch " + epoch);
+        }
+        TreeMap<String, String> changed = new TreeMap<String, String>(tokens);
+        for (String token : delta.getRemoved()) {
+            changed.remove(token);
+        }
+        changed.putAll(delta.getAdded());
+        return new VersionedRing(delta.getEpoch(), changed);
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public SortedMap<String, String> getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @return "host:port" of the server owning the key followed by the next
+     *         distinct servers clockwise, at most count servers in all
+     */
+    public List<String> replicasFor(String key, int count) {
+        List<String> servers = new ArrayList<String>(count);
+        String hash = Hash128.of(key).toHex();
+        // The owner is the first token above the hash, wrapping around
+        addDistinct(servers, tokens.tailMap(hash, false).values(), count);
+        addDistinct(servers, tokens.headMap(hash, true).values(), count);
+        return servers;
+    }
+
+    private static void addDistinct(List<String> servers, Collection<String> owners, int count) {
+        for (String owner : owners) {
+            if (servers.size() >= count) {
+                return;
+            }
+            if (!servers.contains(owner)) {
+                servers.add(owner);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return tokens.isEmpty();
+    }
+
+    public String toMetadata() {
+        String built = metadata;
+        if (built == null) {
+            StringBuilder ranges = new StringBuilder();
+            String low = tokens.isEmpty() ? null : tokens.lastKey();
+            for (Map.Entry<String, String> token : tokens.entrySet()) {
+                ranges.append(low).append(',').append(token.getKey()).append(',').append(token.getValue()).append(';');
+                low = token.getKey();
+            }
+            built = ranges.toString();
+            metadata = built;
+        }
+        return built;
+    }
+}
@@ -18,6 +18,17 @@ public interface KVMessage {
 		SERVER_NOT_RESPONSIBLE, /* Request not successful, server not responsible for key */
 		KEYRANGE,
 		KEYRANGE_SUCCESS,
+		KEYRANGE_DELTA,			/* Keyrange - request, payload is the epoch of the client's metadata */
+		KEYRANGE_DELTA_SUCCESS,	/* Keyrange - response, payload is an encoded ring delta since that epoch */
+		KEYRANGE_DELTA_ERROR,	/* Keyrange - response, the server has no ring to describe yet */
+
+		MGET,			/* Batch get - request, payload is a list of keys */
+		MPUT,			/* Batch put - request, payload is a list of key-value pairs */
+		MDELETE,		/* Batch delete - request, payload is a list of keys */
+		BATCH_RESULT,	/* Batch - response, payload is a list of (status, key, value) */
+
+		PUT_STREAM,		/* Put - request, value length follows, value is sent in chunk frames */
+		GET_STREAM,		/* Get - response, value length follows, value is sent in chunk frames */
 	}
 
 	/**
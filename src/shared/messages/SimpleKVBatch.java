@@ -0,0 +1,103 @@
+package shared.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes the payload of the batch messages (MGET, MPUT, MDELETE, BATCH_RESULT).
+ *
+ * A payload is a flat sequence of length-prefixed fields, "<length>:<chars>",
+ * so keys and values may contain spaces without breaking the single line frame.
+ * A null field is written as "-1:". Each batch entry is a fixed number of
+ * consecutive fields (the arity): 1 for MGET/MDELETE, 2 for MPUT and 3 for
+ * BATCH_RESULT (status, key, value).
+ *
+ * Field lengths count characters of the payload as sent, so a field must
+ * consist of characters the frame carries unchanged (see isEncodable);
+ * anything else would shift every later field.
+ */
+public class SimpleKVBatch {
+
+    private static final String NULL_FIELD = "-1:";
+
+    public static String encode(List<String[]> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (String[] entry : entries) {
+            for (String field : entry) {
+                appendField(sb, field);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return true if the field survives the message frame, null included
+     */
+    public static boolean isEncodable(String field) {
+        return field == null || SimpleKVCommunication.isPrintable(field);
+    }
+
+    public static void appendField(StringBuilder sb, String field) {
+        if (field == null) {
+            sb.append(NULL_FIELD);
+        } else {
+            sb.append(field.length()).append(':').append(field);
+        }
+    }
+
+    public static List<String[]> decode(String payload, int arity) {
+        List<String[]> entries = new ArrayList<String[]>();
+        if (payload == null) {
+            return entries;
+        }
+        int pos = 0;
+        String[] entry = new String[arity];
+        int field = 0;
+        while (pos < payload.length()) {
+            int colon = payload.indexOf(':', pos);
+            if (colon < 0) {
+                throw new IllegalArgumentException("Malformed batch payload at offset " + pos);
+            }
+            int length = Integer.parseInt(payload.substring(pos, colon));
+            pos = colon + 1;
+            if (length < 0) {
+                entry[field] = null;
+            } else {
+                if (pos + length > payload.length()) {
+                    throw new IllegalArgumentException("Truncated batch payload at offset " + pos);
+                }
+                entry[field] = payload.substring(pos, pos + length);
+                pos += length;
+            }
+            field++;
+            if (field == arity) {
+                entries.add(entry);
+                entry = new String[arity];
+                field = 0;
+            }
+        }
+        if (field != 0) {
+            throw new IllegalArgumentException("Incomplete batch entry in payload");
+        }
+        return entries;
+    }
+
+    /**
+     * @return the number of fields per entry for the given batch status
+     */
+    public static int arityOf(KVMessage.StatusType status) {
+        switch (status) {
+            case MPUT:
+                return 2;
+            case BATCH_RESULT:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    public static boolean isBatch(KVMessage.StatusType status) {
+        return status == KVMessage.StatusType.MGET || status == KVMessage.StatusType.MPUT
+            || status == KVMessage.StatusType.MDELETE || status == KVMessage.StatusType.BATCH_RESULT;
+    }
+}
@@ -6,6 +6,7 @@ import java.io.OutputStream;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.io.EOFException;
 
 import shared.messages.SimpleKVMessage;
 import shared.messages.KVMessage.StatusType;
@@ -15,6 +16,12 @@ public class SimpleKVCommunication {
     private static final int BUFFER_SIZE = 1024;
     private static final int DROP_SIZE = 1024 * BUFFER_SIZE;
 
+    /* Values longer than this are sent as a PUT_STREAM/GET_STREAM header followed by chunk frames */
+    public static final int STREAM_THRESHOLD = 16 * 1024;
+    public static final int CHUNK_SIZE = 8 * 1024;
+    /* Longest value a stream may announce, longer ones are refused instead of buffered */
+    public static final int MAX_STREAM_LENGTH = 16 * 1024 * 1024;
+
     public static String receiveMessage(InputStream input, Logger logger) throws IOException {
 		
 		int index = 0;
@@ -22,7 +29,7 @@ public class SimpleKVCommunication {
 		byte[] bufferBytes = new byte[BUFFER_SIZE];
 		
 		/* read first char from stream */
-		byte read = (byte) input.read();	
+		byte read = readByte(input);	
 		boolean reading = true;
 		
 		while(read != 13 && reading) {/* CR, LF, error */
@@ -55,7 +62,7 @@ public class SimpleKVCommunication {
 			}
 			
 			/* read next char from stream */
-			read = (byte) input.read();
+			read = readByte(input);
 		}
 		
 		if(msgBytes == null){
@@ -74,12 +81,30 @@ public class SimpleKVCommunication {
 		return msg;
     }
 
+    /* A closed stream must end the read loop instead of being read as an endless run of -1 */
+    private static byte readByte(InputStream input) throws IOException {
+		int read = input.read();
+		if (read == -1) {
+			throw new EOFException("Connection closed by peer");
+		}
+		return (byte) read;
+    }
+
     public static SimpleKVMessage parseMessage(String msg, Logger logger) {
 		logger.info("Received request string: " + msg);
         if (msg == null || msg.trim().isEmpty()) {
             logger.error("Empty or null request string received");
             return new SimpleKVMessage(StatusType.PUT_ERROR, null, null);
         }
+        long epoch = SimpleKVMessage.NO_EPOCH;
+        if (msg.charAt(0) == SimpleKVMessage.EPOCH_PREFIX && msg.indexOf(' ') > 0) {
+            try {
+                epoch = Long.parseLong(msg.substring(1, msg.indexOf(' ')));
+            } catch (NumberFormatException e) {
+                logger.error("Invalid epoch prefix: " + msg.substring(0, msg.indexOf(' ')));
+            }
+            msg = msg.substring(msg.indexOf(' ') + 1);
+        }
         String[] parts = msg.split(" ", 3);
         StatusType status;
         try {
@@ -91,8 +116,14 @@ public class SimpleKVCommunication {
         }
 
 		SimpleKVMessage ret_msg;
-        if (status == StatusType.SERVER_NOT_RESPONSIBLE || status == StatusType.SERVER_STOPPED || 
-       		status == StatusType.SERVER_WRITE_LOCK || status == StatusType.KEYRANGE || status == StatusType.KEYRANGE_SUCCESS) {
+		if (SimpleKVBatch.isBatch(status)) {
+			// Batch payloads may contain spaces, keep everything after the status
+			String payload = msg.indexOf(' ') >= 0 ? msg.substring(msg.indexOf(' ') + 1) : null;
+			ret_msg = new SimpleKVMessage(status, payload);
+			logger.info("Extracted batch payload for: " + status);
+		} else if (status == StatusType.SERVER_NOT_RESPONSIBLE || status == StatusType.SERVER_STOPPED || 
+       		status == StatusType.SERVER_WRITE_LOCK || status == StatusType.KEYRANGE || status == StatusType.KEYRANGE_SUCCESS ||
+       		status == StatusType.KEYRANGE_DELTA || status == StatusType.KEYRANGE_DELTA_SUCCESS || status == StatusType.KEYRANGE_DELTA_ERROR) {
 				String parsed_msg = parts.length > 1 ? parts[1] : null;
 				ret_msg = new SimpleKVMessage(status, parsed_msg);
 				logger.info("Extracted message: " + parsed_msg);
@@ -104,14 +135,115 @@ public class SimpleKVCommunication {
 			logger.info("Extracted key: " + key + ", value: " + value);
 		}
 		System.out.println("SimpleKVComm: " + ret_msg.getMsg());
-        return ret_msg;
+        return epoch != SimpleKVMessage.NO_EPOCH ? ret_msg.withEpoch(epoch) : ret_msg;
     }
 
     public static void sendMessage(SimpleKVMessage msg, OutputStream output, Logger logger) throws IOException {
+		sendMessage(msg, output, logger, true);
+    }
+
+    /**
+     * Writes the message to the stream. With flush set to false the caller is
+     * responsible for flushing, which lets several responses share one write.
+     */
+    public static void sendMessage(SimpleKVMessage msg, OutputStream output, Logger logger, boolean flush) throws IOException {
 		System.out.println("SimpleKVComm, SENDING MESSAGE");
 		byte[] msgBytes = msg.getMsgBytes();
 		output.write(msgBytes, 0, msgBytes.length);
-		output.flush();
+		if (flush) {
+			output.flush();
+		}
 		logger.info("Send message:\t '" + msg.getMsg() + "'");
     }
-}
\ No newline at end of file
+
+    /* A length a stream header may announce */
+    public static boolean isStreamLength(int length) {
+		return length >= 0 && length <= MAX_STREAM_LENGTH;
+    }
+
+    public static boolean shouldStream(String value) {
+		return value != null && value.length() > STREAM_THRESHOLD;
+    }
+
+    /**
+     * @return true if the value is at most MAX_STREAM_LENGTH long and every
+     *         character survives the stream encoding, which carries printable
+     *         ASCII only like regular messages
+     */
+    public static boolean isStreamable(String value) {
+		return value.length() <= MAX_STREAM_LENGTH && isPrintable(value);
+    }
+
+    /**
+     * @return true if the text is printable ASCII only, the characters
+     *         receiveMessage keeps; every other one is dropped on the way
+     */
+    public static boolean isPrintable(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 32 || c > 126) {
+				return false;
+			}
+		}
+		return true;
+    }
+
+    /**
+     * Sends a large value as a "STATUS key length" header followed by frames of
+     * at most CHUNK_SIZE characters, each terminated like a regular message.
+     * Only one chunk buffer is allocated, the value is never copied as a whole.
+     * @throws IllegalArgumentException if the value is not streamable, before anything is written
+     */
+    public static void sendStreamed(StatusType status, String key, String value, OutputStream output, Logger logger, boolean flush) throws IOException {
+		if (!isStreamable(value)) {
+			throw new IllegalArgumentException("Value for key " + key + " is too long or holds characters outside printable ASCII");
+		}
+		byte[] header = new SimpleKVMessage(status, key, String.valueOf(value.length())).getMsgBytes();
+		output.write(header, 0, header.length);
+
+		byte[] chunk = new byte[Math.min(CHUNK_SIZE, value.length()) + 2];
+		for (int offset = 0; offset < value.length(); offset += CHUNK_SIZE) {
+			int length = Math.min(CHUNK_SIZE, value.length() - offset);
+			for (int i = 0; i < length; i++) {
+				chunk[i] = (byte) value.charAt(offset + i);
+			}
+			chunk[length] = 0x0A;
+			chunk[length + 1] = 0x0D;
+			output.write(chunk, 0, length + 2);
+		}
+		if (flush) {
+			output.flush();
+		}
+		logger.info("Streamed " + status + " for key " + key + " (" + value.length() + " chars)");
+    }
+
+    /**
+     * Reads the chunk frames following a stream header. The buffer grows with
+     * the chunks received, not with the announced length.
+     * @throws IOException if the length is negative or above MAX_STREAM_LENGTH,
+     *         or more characters arrive than announced
+     */
+    public static String receiveStreamed(InputStream input, int length) throws IOException {
+		if (!isStreamLength(length)) {
+			throw new IOException("Invalid stream length " + length);
+		}
+		StringBuilder value = new StringBuilder(Math.min(length, CHUNK_SIZE));
+		while (true) {
+			byte read = readByte(input);
+			if (read == 13) {
+				if (value.length() >= length) {
+					break;
+				}
+			} else if (read > 31 && read < 127) {
+				if (value.length() == length) {
+					throw new IOException("Stream longer than the announced " + length + " chars");
+				}
+				value.append((char) read);
+			}
+		}
+		if (value.length() != length) {
+			throw new IOException("Stream length mismatch, expected " + length + " but got " + value.length());
+		}
+		return value.toString();
+    }
+}
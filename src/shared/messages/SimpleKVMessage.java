@@ -7,6 +7,10 @@ public class SimpleKVMessage implements KVMessage {
     private StatusType status;
     private String msg;
     private byte[] msgBytes;
+    private long epoch = NO_EPOCH;
+    /* Responses are prefixed with "#<epoch> " when the sender knows its metadata version */
+    public static final long NO_EPOCH = -1;
+    public static final char EPOCH_PREFIX = '#';
 	private static final char LINE_FEED = 0x0A;
 	private static final char RETURN = 0x0D;
 
@@ -14,18 +18,18 @@ public class SimpleKVMessage implements KVMessage {
         this.status = status;
         this.key = key;
         this.value = value;
-        this.msg = status.name() + " " + key + " " + (value != null ? value : "");
-        this.msg = this.msg.trim();
-        this.msgBytes = toByteArray(this.msg);
     }
 
     public SimpleKVMessage(StatusType status, String msg) {
         this.status = status;
         this.key = null;
         this.value = null;
-        this.msg = status.name() + " " + (msg != null ? msg : "");
-        this.msg = this.msg.trim();
-        this.msgBytes = toByteArray(this.msg);
+        if (msg != null && SimpleKVBatch.isBatch(status)) {
+            this.msg = status.name() + " " + msg; // length-prefixed payload, must not be trimmed
+        } else {
+            this.msg = status.name() + " " + (msg != null ? msg : "");
+            this.msg = this.msg.trim();
+        }
     }
 
     @Override
@@ -43,10 +47,36 @@ public class SimpleKVMessage implements KVMessage {
         return status;
     }
 
+    /* The text form is built on first use, large values are not copied until they are sent */
     public String getMsg() {
+		if (msg == null) {
+			msg = (status.name() + " " + key + " " + (value != null ? value : "")).trim();
+		}
 		return msg;
 	}
 
+    /**
+     * @return the text following the status name, i.e. the payload of
+     * 		messages built with the (status, msg) constructor.
+     */
+    public String getPayload() {
+        int idx = getMsg().indexOf(' ');
+        return idx >= 0 ? msg.substring(idx + 1) : null;
+    }
+
+    /**
+     * @return the metadata epoch the sender was at, NO_EPOCH if not stamped
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public SimpleKVMessage withEpoch(long epoch) {
+        this.epoch = epoch;
+        this.msgBytes = null;
+        return this;
+    }
+
     /**
 	 * Returns an array of bytes that represent the ASCII coded message content.
 	 * 
@@ -54,6 +84,9 @@ public class SimpleKVMessage implements KVMessage {
 	 * 		in ASCII coding.
 	 */
     public byte[] getMsgBytes() {
+		if (msgBytes == null) {
+			msgBytes = toByteArray(epoch != NO_EPOCH ? EPOCH_PREFIX + Long.toString(epoch) + " " + getMsg() : getMsg());
+		}
 		return msgBytes;
 	}
 
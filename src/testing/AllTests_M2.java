@@ -33,6 +33,14 @@ public class AllTests_M2 {
 		clientSuite.addTestSuite(M2Test6.class); 
 		clientSuite.addTestSuite(M2Test7.class);
 		clientSuite.addTestSuite(M2Test8.class);
+		clientSuite.addTestSuite(M2BatchTest.class);
+		clientSuite.addTestSuite(M2StreamTest.class);
+		clientSuite.addTestSuite(M2MetadataRingTest.class);
+		clientSuite.addTestSuite(M2MigrationTest.class);
+		clientSuite.addTestSuite(M2ECSConfigTest.class);
+		clientSuite.addTestSuite(M2FailureDetectorTest.class);
+		clientSuite.addTestSuite(M2ReplicationTest.class);
+		clientSuite.addTestSuite(M2RetryTest.class);
 		return clientSuite;
 	}
 	
@@ -0,0 +1,71 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import client.KVStore;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.SimpleKVBatch;
+import shared.messages.SimpleKVCommunication;
+import shared.messages.SimpleKVMessage;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class M2BatchTest extends TestCase {
+
+    private Logger logger = Logger.getRootLogger();
+
+    @Test
+    public void testBatchPayloadRoundTrip() {
+        List<String[]> entries = new ArrayList<String[]>();
+        entries.add(new String[]{"key1", "value with spaces "});
+        entries.add(new String[]{"key2", null});
+        entries.add(new String[]{"key3", "12:34"});
+
+        SimpleKVMessage sent = new SimpleKVMessage(StatusType.MPUT, SimpleKVBatch.encode(entries));
+        SimpleKVMessage received = SimpleKVCommunication.parseMessage(new String(sent.getMsgBytes()).trim(), logger);
+
+        assertEquals(StatusType.MPUT, received.getStatus());
+        List<String[]> decoded = SimpleKVBatch.decode(received.getPayload(), SimpleKVBatch.arityOf(StatusType.MPUT));
+        assertEquals(3, decoded.size());
+        assertEquals("value with spaces ", decoded.get(0)[1]);
+        assertNull(decoded.get(1)[1]);
+        assertEquals("12:34", decoded.get(2)[1]);
+    }
+
+    @Test
+    public void testMalformedBatchPayload() {
+        try {
+            SimpleKVBatch.decode("4:key15:val", 2);
+            fail("Truncated payload should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnprintableFieldsAreRejectedBeforeEncoding() throws Exception {
+        assertTrue(SimpleKVBatch.isEncodable(null));
+        assertTrue(SimpleKVBatch.isEncodable("value with spaces "));
+        assertFalse(SimpleKVBatch.isEncodable("two\nlines"));
+        assertFalse(SimpleKVBatch.isEncodable("caf\u00e9"));
+
+        // Refused by the client itself, nothing is sent
+        KVStore kvClient = new KVStore("localhost", 50399);
+        Map<String, String> pairs = new LinkedHashMap<String, String>();
+        pairs.put("lines", "two\nlines");
+        pairs.put("caf\u00e9", "accent in the key");
+        Map<String, KVMessage> results = kvClient.mput(pairs);
+        assertEquals(StatusType.PUT_ERROR, results.get("lines").getStatus());
+        assertEquals(StatusType.PUT_ERROR, results.get("caf\u00e9").getStatus());
+        assertEquals(StatusType.GET_ERROR, kvClient.mget(Collections.singletonList("caf\u00e9")).get("caf\u00e9").getStatus());
+    }
+}
@@ -0,0 +1,215 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import ecs.ConsistentHashing;
+import ecs.ECSCommand;
+import ecs.HashRangeSet;
+import ecs.RingDelta;
+import ecs.VersionedRing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+public class M2ECSConfigTest extends TestCase {
+
+    private static final String WHOLE_RING = "00000000000000000000000000000000";
+    private static final int ECS_PORT = 38121; // the port KVServers announce themselves to
+
+    private KVServer server;
+    private ECSClient ecsClient;
+    private KVServer joining;
+    private ScriptedNode scripted;
+
+    @Override
+    public void setUp() throws Exception {
+        server = new KVServer(50340, 10, "FIFO", "Node_Cfg");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getAdminPort() <= 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        server.kill();
+        if (joining != null) {
+            joining.kill();
+        }
+        if (scripted != null) {
+            scripted.close();
+        }
+        if (ecsClient != null) {
+            ecsClient.stopListening();
+        }
+        for (int port : new int[]{50340, 50341, 50342}) {
+            new File("kvstorage_localhost:" + port + ".txt").delete();
+        }
+    }
+
+    @Test
+    public void testRangeLockOnlyBlocksLockedKeys() {
+        String first = "alpha";
+        String second = "beta";
+        if (ConsistentHashing.getKeyHash(first).compareTo(ConsistentHashing.getKeyHash(second)) > 0) {
+            first = "beta";
+            second = "alpha";
+        }
+        // [hash(first), hash(second)) holds the first key but not the second
+        server.setLockedRanges(HashRangeSet.parse(new String[]{
+            ConsistentHashing.getKeyHash(first), ConsistentHashing.getKeyHash(second)}));
+        assertFalse(server.canWrite(first));
+        assertTrue(server.canWrite(second));
+
+        server.setLockedRanges(null);
+        assertTrue(server.canWrite(first));
+
+        server.setWriteLock(true);
+        assertFalse(server.canWrite(second));
+        server.setWriteLock(false);
+    }
+
+    @Test
+    public void testPreparedConfigAppliesOnlyOnCommit() {
+        String metadata = WHOLE_RING + "," + WHOLE_RING + ",localhost:50340;";
+        String snapshot = RingDelta.snapshot(VersionedRing.parse(metadata, 7)).encode();
+        server.handleECSCommand(ECSCommand.PREPARE_CONFIG, "7 " + snapshot + " " + WHOLE_RING + " " + WHOLE_RING);
+        assertNull(server.getHashRanges());
+        assertTrue(server.getMetadataEpoch() < 7);
+
+        try {
+            server.handleECSCommand(ECSCommand.COMMIT_CONFIG, "8");
+            fail("Commit of an epoch that was not prepared must be refused");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        server.handleECSCommand(ECSCommand.COMMIT_CONFIG, "7");
+        assertEquals(7, server.getMetadataEpoch());
+        assertEquals(metadata, server.keyrange());
+        assertTrue(server.getHashRanges().containsKey("anything"));
+    }
+
+    @Test
+    public void testNodeMissingThePrepareIsLeftOutOfTheCommit() throws Exception {
+        ecsClient = new ECSClient(ECS_PORT, 8, 60000, 8.0); // no pings while the test runs
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ecsClient.startListening();
+            }
+        }).start();
+        Thread.sleep(500);
+
+        scripted = new ScriptedNode();
+        scripted.announce("localhost:50342");
+        awaitNodes(1);
+        joining = new KVServer(50341, 10, "FIFO", "Node_Join");
+        awaitNodes(2);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ecsClient.getCommittedEpoch("localhost:50341") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        // The node that refused to prepare is never told to commit and its version is not tracked
+        Long committed = ecsClient.getCommittedEpoch("localhost:50341");
+        assertNotNull(committed);
+        assertEquals(committed.longValue(), joining.getMetadataEpoch());
+        assertNull(ecsClient.getCommittedEpoch("localhost:50342"));
+        assertFalse(scripted.received(ECSCommand.PREPARE_CONFIG).isEmpty());
+        assertTrue(scripted.received(ECSCommand.COMMIT_CONFIG).isEmpty());
+
+        // Once it takes the configuration again it gets a snapshot, it has no version to apply changes to
+        scripted.refusePrepare = false;
+        ecsClient.updateAllNodesConfiguration();
+        long epoch = joining.getMetadataEpoch();
+        assertEquals(committed + 1, epoch);
+        assertEquals(Long.valueOf(epoch), ecsClient.getCommittedEpoch("localhost:50341"));
+        assertEquals(Long.valueOf(epoch), ecsClient.getCommittedEpoch("localhost:50342"));
+        List<String> prepares = scripted.received(ECSCommand.PREPARE_CONFIG);
+        String[] prepare = prepares.get(prepares.size() - 1).split(" ");
+        assertEquals(String.valueOf(epoch), prepare[0]);
+        assertTrue(RingDelta.decode(prepare[1]).isSnapshot());
+        assertEquals(Collections.singletonList(String.valueOf(epoch)), scripted.received(ECSCommand.COMMIT_CONFIG));
+    }
+
+    private void awaitNodes(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (ecsClient.getNodes().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, ecsClient.getNodes().size());
+    }
+
+    /* Speaks the control protocol on an admin port, acknowledging every command but refusing PREPARE_CONFIG while told to */
+    private static class ScriptedNode implements Runnable {
+        private final ServerSocket adminSocket;
+        private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean refusePrepare = true;
+
+        ScriptedNode() throws IOException {
+            adminSocket = new ServerSocket(0);
+            Thread thread = new Thread(this, "scripted-node");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void announce(String name) throws IOException {
+            try (Socket socket = new Socket("localhost", ECS_PORT);
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                out.println("ALIVE " + name + " " + adminSocket.getLocalPort() + " 1");
+            }
+        }
+
+        /* Arguments of every received command of the given kind */
+        List<String> received(ECSCommand command) {
+            List<String> args = new ArrayList<String>();
+            synchronized (commands) {
+                for (String line : commands) {
+                    String[] parts = line.split(" ", 4);
+                    if (command.name().equals(parts[2])) {
+                        args.add(parts.length > 3 ? parts[3] : "");
+                    }
+                }
+            }
+            return args;
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = adminSocket.accept();
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    commands.add(line);
+                    String[] parts = line.split(" ", 4);
+                    if (refusePrepare && ECSCommand.PREPARE_CONFIG.name().equals(parts[2])) {
+                        out.println(ECSCommand.ACK + " " + parts[1] + " " + ECSCommand.ERROR + " refused");
+                    } else if (ECSCommand.MOVE_RANGE.name().equals(parts[2])) {
+                        out.println(ECSCommand.ACK + " " + parts[1] + " " + ECSCommand.OK + " 0"); // holds no records
+                    } else {
+                        out.println(ECSCommand.ACK + " " + parts[1] + " " + ECSCommand.OK);
+                    }
+                }
+            } catch (IOException e) {
+                // closed by the test
+            }
+        }
+
+        void close() throws IOException {
+            adminSocket.close();
+        }
+    }
+}
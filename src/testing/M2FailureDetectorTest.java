@@ -0,0 +1,56 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import app_kvECS.FailureDetector;
+
+
+public class M2FailureDetectorTest extends TestCase {
+
+    @Test
+    public void testRegularHeartbeatsAreNotSuspected() {
+        FailureDetector detector = new FailureDetector(100, 8.0);
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            detector.heartbeat("n1", now);
+            now += 100;
+        }
+        assertFalse(detector.isSuspected("n1", now));
+        assertFalse(detector.isSuspected("unknown", now));
+    }
+
+    @Test
+    public void testBurstOfRepliesDoesNotLowerTheBar() {
+        FailureDetector detector = new FailureDetector(100, 8.0);
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            detector.heartbeat("n1", now); // replies that queued behind a slow command
+            now += 1;
+        }
+        assertFalse(detector.isSuspected("n1", now + 200));
+    }
+
+    @Test
+    public void testSilentNodeIsSuspected() {
+        FailureDetector detector = new FailureDetector(100, 8.0);
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            detector.heartbeat("n1", now);
+            detector.heartbeat("n2", now);
+            now += 100;
+        }
+        // n2 keeps replying, n1 goes silent
+        long silentSince = now - 100;
+        for (int i = 0; i < 30; i++) {
+            detector.heartbeat("n2", now);
+            now += 100;
+        }
+        assertTrue(detector.isSuspected("n1", now));
+        assertFalse(detector.isSuspected("n2", now));
+        assertTrue(detector.phi("n1", now) > detector.phi("n1", silentSince + 500));
+
+        detector.remove("n1");
+        assertFalse(detector.isSuspected("n1", now));
+    }
+}
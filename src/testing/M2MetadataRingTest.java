@@ -0,0 +1,247 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import app_kvECS.Metadata;
+import client.MetadataRing;
+import ecs.AckMode;
+import ecs.ConsistentHashing;
+import ecs.ECSNode;
+import ecs.Hash128;
+import ecs.HashRange;
+import ecs.HashRangeSet;
+import ecs.RingDelta;
+import ecs.RingHistory;
+import ecs.VersionedRing;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+public class M2MetadataRingTest extends TestCase {
+
+    private static final String LOW = "00000000000000000000000000000000";
+    private static final String MID = "80000000000000000000000000000000";
+    private static final String HIGH = "c0000000000000000000000000000000";
+
+    @Test
+    public void testRingMatchesKeyRanges() {
+        String metadata = MID + "," + HIGH + ",localhost:50001;"
+            + HIGH + "," + MID + ",localhost:50002;";
+        MetadataRing ring = MetadataRing.parse(metadata);
+        assertEquals(2, ring.size());
+
+        for (int i = 0; i < 200; i++) {
+            String key = "key" + i;
+            String hash = ConsistentHashing.getKeyHash(key);
+            String expected = ConsistentHashing.isKeyInRange(hash, new String[]{MID, HIGH})
+                ? "localhost:50001" : "localhost:50002";
+            assertEquals(expected, ring.serverFor(key));
+        }
+    }
+
+    @Test
+    public void testSingleNodeOwnsEverything() {
+        MetadataRing ring = MetadataRing.parse(LOW + "," + LOW + ",localhost:50000;");
+        assertEquals("localhost:50000", ring.serverFor("anything"));
+        assertNull(MetadataRing.parse(""));
+    }
+
+    @Test
+    public void testHash128MatchesMd5() throws Exception {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        for (int i = 0; i < 100; i++) {
+            String key = "key-" + i;
+            String expected = String.format("%032x", new BigInteger(1, md.digest(key.getBytes())));
+            assertEquals(expected, ConsistentHashing.getKeyHash(key));
+            assertEquals(expected, Hash128.fromHex(expected).toHex());
+        }
+    }
+
+    @Test
+    public void testHashRangeBounds() {
+        HashRange range = new HashRange(MID, HIGH);
+        assertTrue(range.contains(Hash128.fromHex(MID)));
+        assertFalse(range.contains(Hash128.fromHex(HIGH)));
+        assertFalse(range.contains(Hash128.fromHex(LOW)));
+
+        HashRange wrapping = new HashRange(HIGH, MID);
+        assertTrue(wrapping.contains(Hash128.fromHex("ffffffffffffffffffffffffffffffff")));
+        assertTrue(wrapping.contains(Hash128.fromHex(LOW)));
+        assertFalse(wrapping.contains(Hash128.fromHex(MID)));
+    }
+
+    @Test
+    public void testVirtualNodesCoverRing() {
+        Metadata metadata = new Metadata(8);
+        List<ECSNode> nodes = new ArrayList<ECSNode>();
+        for (int i = 0; i < 3; i++) {
+            ECSNode node = new ECSNode("server_" + i, "localhost", 50000 + i, "None", 0, null, null);
+            nodes.add(node);
+            metadata.addNode(node);
+        }
+
+        StringBuilder ringMetadata = new StringBuilder();
+        List<HashRangeSet> ranges = new ArrayList<HashRangeSet>();
+        for (ECSNode node : nodes) {
+            List<String[]> nodeRanges = node.getNodeHashRanges();
+            assertEquals(8, nodeRanges.size());
+            List<String> bounds = new ArrayList<String>();
+            for (String[] range : nodeRanges) {
+                bounds.add(range[0]);
+                bounds.add(range[1]);
+                ringMetadata.append(range[0] + "," + range[1] + ",localhost:" + node.getNodePort() + ";");
+            }
+            ranges.add(HashRangeSet.parse(bounds.toArray(new String[bounds.size()])));
+        }
+        MetadataRing ring = MetadataRing.parse(ringMetadata.toString());
+        assertEquals(24, ring.size());
+
+        // Every key lands in exactly one node's ranges, and the ECS and client agree on it
+        for (int i = 0; i < 300; i++) {
+            String key = "key" + i;
+            ECSNode owner = metadata.getNodeForKey(ConsistentHashing.getKeyHash(key));
+            int owners = 0;
+            for (int n = 0; n < nodes.size(); n++) {
+                if (ranges.get(n).containsKey(key)) {
+                    owners++;
+                    assertSame(nodes.get(n), owner);
+                }
+            }
+            assertEquals(1, owners);
+            assertEquals("localhost:" + owner.getNodePort(), ring.serverFor(key));
+        }
+    }
+
+    @Test
+    public void testWeightScalesTokens() {
+        Metadata metadata = new Metadata(16);
+        ECSNode light = new ECSNode("light", "localhost", 50010, "None", 0, null, null);
+        ECSNode heavy = new ECSNode("heavy", "localhost", 50011, "None", 0, null, null);
+        heavy.setWeight(3);
+        metadata.addNode(light);
+        metadata.addNode(heavy);
+        assertEquals(16, light.getNodeHashRanges().size());
+        assertEquals(48, heavy.getNodeHashRanges().size());
+
+        int heavyKeys = 0;
+        for (int i = 0; i < 2000; i++) {
+            if (metadata.getNodeForKey(ConsistentHashing.getKeyHash("key" + i)) == heavy) {
+                heavyKeys++;
+            }
+        }
+        // Roughly three quarters of the keys, with room for token placement noise
+        assertTrue("heavy node owns " + heavyKeys + " of 2000 keys", heavyKeys > 1200 && heavyKeys < 1800);
+
+        metadata.removeNode(heavy);
+        assertEquals(1, metadata.getNodes().size());
+        assertEquals(16, metadata.getHashRing().size());
+    }
+
+    @Test
+    public void testBatchChangeMovesEachKeyOnceToItsFinalOwner() {
+        Metadata metadata = new Metadata(8);
+        List<ECSNode> nodes = new ArrayList<ECSNode>();
+        for (int i = 0; i < 5; i++) {
+            nodes.add(new ECSNode("server_" + i, "localhost", 50020 + i, "None", 0, null, null));
+        }
+        metadata.changeNodes(nodes.subList(0, 3), new ArrayList<ECSNode>());
+        TreeMap<String, ECSNode> before = metadata.snapshot();
+
+        // Two nodes join while one leaves, in a single change
+        metadata.changeNodes(nodes.subList(3, 5), nodes.subList(0, 1));
+        List<Metadata.Transfer> transfers = Metadata.transfersBetween(before, metadata.getHashRing());
+
+        for (int i = 0; i < 2000; i++) {
+            String hash = ConsistentHashing.getKeyHash("key" + i);
+            ECSNode from = before.higherEntry(hash) != null ? before.higherEntry(hash).getValue() : before.firstEntry().getValue();
+            ECSNode to = metadata.getNodeForKey(hash);
+            int moves = 0;
+            for (Metadata.Transfer transfer : transfers) {
+                if (new HashRange(transfer.getHashRange()[0], transfer.getHashRange()[1]).contains(Hash128.fromHex(hash))) {
+                    assertSame(from, transfer.getFrom());
+                    assertSame(to, transfer.getTo());
+                    moves++;
+                }
+            }
+            assertEquals(from == to ? 0 : 1, moves);
+        }
+    }
+
+    @Test
+    public void testRingDeltaCarriesOnlyChangedTokens() {
+        Metadata metadata = new Metadata(16);
+        for (int i = 0; i < 4; i++) {
+            metadata.addNode(new ECSNode("server_" + i, "localhost", 50030 + i, "None", 0, null, null));
+        }
+        VersionedRing before = new VersionedRing(1, tokensOf(metadata));
+        metadata.addNode(new ECSNode("server_4", "localhost", 50034, "None", 0, null, null));
+        VersionedRing after = new VersionedRing(2, tokensOf(metadata));
+
+        RingDelta delta = RingDelta.decode(RingDelta.between(before, after).encode());
+        assertEquals(16, delta.getAdded().size());
+        assertTrue(delta.getRemoved().isEmpty());
+        assertEquals(after.toMetadata(), before.apply(delta).toMetadata());
+        assertTrue(delta.encode().length() < RingDelta.snapshot(after).encode().length() / 4);
+
+        // The client view built from the tokens routes like the metadata string
+        MetadataRing ring = MetadataRing.of(before.apply(delta));
+        MetadataRing parsed = MetadataRing.parse(after.toMetadata(), 2);
+        for (int i = 0; i < 300; i++) {
+            String key = "key" + i;
+            ECSNode owner = metadata.getNodeForKey(ConsistentHashing.getKeyHash(key));
+            assertEquals("localhost:" + owner.getNodePort(), ring.serverFor(key));
+            assertEquals(ring.serverFor(key), parsed.serverFor(key));
+        }
+
+        // Too far behind for the kept versions, a snapshot is sent instead
+        RingHistory history = new RingHistory(1);
+        history.add(before);
+        history.add(after);
+        assertTrue(history.since(1).isSnapshot());
+        assertFalse(history.since(2).isSnapshot());
+    }
+
+    @Test
+    public void testReplicasAreTheNextDistinctServers() {
+        Metadata metadata = new Metadata(8);
+        for (int i = 0; i < 4; i++) {
+            metadata.addNode(new ECSNode("server_" + i, "localhost", 50040 + i, "None", 0, null, null));
+        }
+        VersionedRing ring = new VersionedRing(1, tokensOf(metadata));
+        MetadataRing view = MetadataRing.of(ring);
+        for (int i = 0; i < 300; i++) {
+            String key = "key" + i;
+            List<String> replicas = ring.replicasFor(key, 3);
+            assertEquals(3, replicas.size());
+            assertEquals(view.serverFor(key), replicas.get(0));
+            assertEquals(3, new HashSet<String>(replicas).size());
+
+            // The first replica takes over the key when its owner fails
+            TreeMap<String, String> survivors = tokensOf(metadata);
+            survivors.values().removeAll(Collections.singleton(replicas.get(0)));
+            assertEquals(replicas.get(1), MetadataRing.of(new VersionedRing(2, survivors)).serverFor(key));
+        }
+        assertEquals(4, ring.replicasFor("key", 10).size());
+
+        assertEquals(1, AckMode.ONE.required(3));
+        assertEquals(2, AckMode.QUORUM.required(3));
+        assertEquals(3, AckMode.ALL.required(3));
+        assertEquals(1, AckMode.QUORUM.required(1));
+    }
+
+    private static TreeMap<String, String> tokensOf(Metadata metadata) {
+        TreeMap<String, String> tokens = new TreeMap<String, String>();
+        for (Map.Entry<String, ECSNode> token : metadata.getHashRing().entrySet()) {
+            tokens.put(token.getKey(), "localhost:" + token.getValue().getNodePort());
+        }
+        return tokens;
+    }
+}
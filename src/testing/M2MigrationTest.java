@@ -0,0 +1,185 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import app_kvServer.KVServer;
+import app_kvServer.RangeMigration;
+import ecs.ConsistentHashing;
+import ecs.ECSCommand;
+import ecs.HashRangeSet;
+import shared.messages.SimpleKVBatch;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+public class M2MigrationTest extends TestCase {
+
+    private static final String WHOLE_RING = "00000000000000000000000000000000";
+
+    private KVServer source;
+    private KVServer target;
+
+    @Override
+    public void setUp() throws Exception {
+        source = new KVServer(50310, 10, "FIFO", "Node_Src");
+        target = new KVServer(50311, 10, "FIFO", "Node_Dst");
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((source.getAdminPort() <= 0 || target.getAdminPort() <= 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        source.kill();
+        target.kill();
+    }
+
+    @Test
+    public void testRangeMovesAcrossBatches() throws Exception {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 1000) {
+            value.append("migrated value ");
+        }
+        for (int i = 0; i < 300; i++) {
+            source.putKV("mkey" + i, value.toString() + i);
+        }
+
+        HashRangeSet everything = HashRangeSet.parse(new String[]{WHOLE_RING, WHOLE_RING});
+        int moved = RangeMigration.send(source, everything, "localhost", target.getAdminPort(), "test-move");
+
+        assertEquals(300, moved);
+        for (int i = 0; i < 300; i += 37) {
+            assertEquals(value.toString() + i, target.getKV("mkey" + i));
+        }
+    }
+
+    @Test
+    public void testCorruptBatchIsRejectedAndTransferResumes() throws Exception {
+        List<String[]> records = new ArrayList<String[]>();
+        records.add(new String[]{"a", "1"});
+        records.add(new String[]{"b", "2"});
+        String payload = SimpleKVBatch.encode(records);
+
+        Socket socket = new Socket("localhost", target.getAdminPort());
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        out.println(RangeMigration.HELLO + " tester resume-test");
+        assertEquals("RESUME 0", in.readLine());
+        out.println("BATCH 0 deadbeef " + payload);
+        assertEquals("NACK 0", in.readLine());
+        out.println("BATCH 0 " + crc(payload) + " " + payload);
+        assertEquals("ACK 2", in.readLine());
+        socket.close(); // broken before END
+
+        socket = new Socket("localhost", target.getAdminPort());
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out = new PrintWriter(socket.getOutputStream(), true);
+        out.println(RangeMigration.HELLO + " tester resume-test");
+        assertEquals("RESUME 2", in.readLine());
+        out.println("END 2");
+        assertEquals("DONE 2", in.readLine());
+        socket.close();
+
+        assertEquals("1", target.getKV("a"));
+        assertEquals("2", target.getKV("b"));
+    }
+
+    @Test
+    public void testAbortedTransferStartsOver() throws Exception {
+        List<String[]> records = new ArrayList<String[]>();
+        records.add(new String[]{"a", "1"});
+        String payload = SimpleKVBatch.encode(records);
+
+        Socket socket = new Socket("localhost", target.getAdminPort());
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        out.println(RangeMigration.HELLO + " tester abort-test");
+        assertEquals("RESUME 0", in.readLine());
+        out.println("BATCH 0 " + crc(payload) + " " + payload);
+        assertEquals("ACK 1", in.readLine());
+        out.println("ABORT");
+        assertEquals("DONE 1", in.readLine());
+        socket.close();
+
+        // Nothing is resumed from the given up transfer
+        socket = new Socket("localhost", target.getAdminPort());
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out = new PrintWriter(socket.getOutputStream(), true);
+        out.println(RangeMigration.HELLO + " tester abort-test");
+        assertEquals("RESUME 0", in.readLine());
+        socket.close();
+    }
+
+    private static String crc(String payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    @Test
+    public void testWritesAreForwardedUntilOwnershipSwitches() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            source.putKV("okey" + i, "v" + i);
+        }
+        String wholeRing = WHOLE_RING + " " + WHOLE_RING;
+        String moved = source.handleECSCommand(ECSCommand.MOVE_RANGE, "localhost " + target.getAdminPort() + " " + wholeRing);
+        assertEquals("50", moved);
+
+        // Still writable on the old owner, and mirrored to the new one
+        source.putKV("okey7", "changed");
+        source.putKV("late", "x");
+        assertEquals("changed", target.getKV("okey7"));
+        assertEquals("x", target.getKV("late"));
+
+        source.handleECSCommand(ECSCommand.DROP_RANGE, wholeRing);
+        assertNull(source.getKV("late"));
+        assertEquals("x", target.getKV("late"));
+    }
+
+    @Test
+    public void testDropEndsOnlyTheMigrationsOfItsRanges() throws Exception {
+        String lowHalf = WHOLE_RING + " 80000000000000000000000000000000";
+        String highHalf = "80000000000000000000000000000000 " + WHOLE_RING;
+        source.handleECSCommand(ECSCommand.MOVE_RANGE, "localhost " + target.getAdminPort() + " " + lowHalf);
+        source.handleECSCommand(ECSCommand.MOVE_RANGE, "localhost " + target.getAdminPort() + " " + highHalf);
+
+        source.handleECSCommand(ECSCommand.DROP_RANGE, lowHalf);
+        String key = keyAbove("80000000000000000000000000000000");
+        source.putKV(key, "still moving");
+        assertEquals("still moving", target.getKV(key));
+        source.handleECSCommand(ECSCommand.DROP_RANGE, highHalf);
+    }
+
+    @Test
+    public void testAbortedMoveKeepsRecordsAndStopsForwarding() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            source.putKV("akey" + i, "v" + i);
+        }
+        String wholeRing = WHOLE_RING + " " + WHOLE_RING;
+        source.handleECSCommand(ECSCommand.MOVE_RANGE, "localhost " + target.getAdminPort() + " " + wholeRing);
+
+        assertEquals("1", source.handleECSCommand(ECSCommand.ABORT_MOVE, wholeRing));
+        source.putKV("late", "x");
+        assertNull(target.getKV("late"));
+        assertEquals("v3", source.getKV("akey3"));
+        // Nothing is left moving the ranges, so they can be moved again
+        assertEquals("21", source.handleECSCommand(ECSCommand.MOVE_RANGE, "localhost " + target.getAdminPort() + " " + wholeRing));
+    }
+
+    private static String keyAbove(String hash) {
+        for (int i = 0; ; i++) {
+            if (ConsistentHashing.getKeyHash("hkey" + i).compareTo(hash) >= 0) {
+                return "hkey" + i;
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import app_kvECS.ECSClient;
+import client.KVStore;
+import client.MetadataRing;
+import client.RetryPolicy;
+import ecs.AckMode;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/* Three servers, each key on all of them; the servers run as their own processes so they can crash */
+public class M2ReplicationTest extends TestCase {
+
+    private static final int ECS_PORT = 38121; // the port KVServers announce themselves to
+    private static final int[] PORTS = {50330, 50331, 50332};
+    private static final long NO_FAILURE_DETECTION = 60000; // first ping after the test is over
+
+    private ECSClient ecsClient;
+    private final List<Process> servers = new ArrayList<Process>();
+    private File storageDir;
+    private KVStore kvClient;
+    private MetadataRing ring;
+
+    @Override
+    public void tearDown() throws Exception {
+        if (kvClient != null) {
+            kvClient.disconnect();
+        }
+        for (Process server : servers) {
+            server.destroyForcibly().waitFor();
+        }
+        if (ecsClient != null) {
+            ecsClient.stopListening();
+        }
+        if (storageDir != null) {
+            for (File file : storageDir.listFiles()) {
+                file.delete();
+            }
+            storageDir.delete();
+        }
+        for (int port : PORTS) {
+            new File("kvstorage_localhost:" + port + ".txt").delete();
+        }
+    }
+
+    @Test
+    public void testOneNeedsOnlyTheOwner() throws Exception {
+        startCluster(AckMode.ONE, NO_FAILURE_DETECTION);
+        // Copies may not have arrived yet, a replica without one sends the read on to the owner
+        kvClient.setReadReplicas(PORTS.length);
+        for (int i = 0; i < 50; i++) {
+            kvClient.put("okey" + i, "v" + i);
+            assertEquals("v" + i, kvClient.get("okey" + i).getValue());
+        }
+        crash(2);
+        crash(1);
+        assertEquals(StatusType.PUT_SUCCESS, kvClient.put(keyOwnedBy(0), "v").getStatus());
+    }
+
+    @Test
+    public void testQuorumNeedsMajority() throws Exception {
+        startCluster(AckMode.QUORUM, NO_FAILURE_DETECTION);
+        crash(2);
+        assertEquals(StatusType.PUT_SUCCESS, kvClient.put(keyOwnedBy(0), "v").getStatus());
+        crash(1);
+        assertEquals(StatusType.PUT_ERROR, kvClient.put(keyOwnedBy(0), "w").getStatus());
+    }
+
+    @Test
+    public void testAllNeedsEveryReplica() throws Exception {
+        startCluster(AckMode.ALL, NO_FAILURE_DETECTION);
+        String key = keyOwnedBy(0);
+        assertEquals(StatusType.PUT_SUCCESS, kvClient.put(key, "v").getStatus());
+        // Acknowledged by every copy, so any of them answers with the value right away
+        kvClient.setReadReplicas(PORTS.length);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("v", kvClient.get(key).getValue());
+        }
+        crash(2);
+        assertEquals(StatusType.PUT_ERROR, kvClient.put(key, "w").getStatus());
+    }
+
+    @Test
+    public void testFirstReplicaServesFailedOwnersKeys() throws Exception {
+        startCluster(AckMode.QUORUM, 200);
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; keys.size() < 20; i++) {
+            String key = "rkey" + i;
+            if (ring.serverFor(key).endsWith(":" + PORTS[0])) {
+                keys.add(key);
+                assertEquals(StatusType.PUT_SUCCESS, kvClient.put(key, "value " + i).getStatus());
+            }
+        }
+        crash(0);
+        long deadline = System.currentTimeMillis() + 20000;
+        while (ecsClient.getNodes().size() > 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(2, ecsClient.getNodes().size());
+
+        for (String key : keys) {
+            KVMessage response = kvClient.get(key);
+            assertEquals(StatusType.GET_SUCCESS, response.getStatus());
+            assertEquals("value " + key.substring(4), response.getValue());
+        }
+        KVStore survivor = new KVStore("localhost", PORTS[1]);
+        survivor.connect();
+        MetadataRing after = MetadataRing.parse(survivor.keyrange().getPayload());
+        survivor.disconnect();
+        for (String key : keys) {
+            assertEquals(ring.replicasFor(key, PORTS.length).get(1), after.serverFor(key));
+        }
+    }
+
+    private void startCluster(AckMode ackMode, long heartbeatInterval) throws Exception {
+        ecsClient = new ECSClient(ECS_PORT, 8, heartbeatInterval, 8.0);
+        ecsClient.setReplication(PORTS.length, ackMode);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ecsClient.startListening();
+            }
+        }).start();
+        Thread.sleep(500);
+
+        storageDir = Files.createTempDirectory("replication").toFile();
+        for (int i = 0; i < PORTS.length; i++) {
+            servers.add(new ProcessBuilder("java", "-cp", System.getProperty("java.class.path"), "app_kvServer.KVServer",
+                    "-n", "Node_" + (i + 1), "-p", Integer.toString(PORTS[i]), "-d", storageDir.getPath(),
+                    "-l", new File(storageDir, "server" + i + ".log").getPath(), "-ll", "SEVERE")
+                .redirectErrorStream(true)
+                .redirectOutput(new File(storageDir, "server" + i + ".out"))
+                .start());
+        }
+        long deadline = System.currentTimeMillis() + 20000;
+        while (ecsClient.getNodes().size() < PORTS.length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(PORTS.length, ecsClient.getNodes().size());
+
+        kvClient = new KVStore("localhost", PORTS[0]);
+        kvClient.connect();
+        kvClient.setRetryPolicy(RetryPolicy.NONE);
+        // Writable once every server has its ranges and knows its replicas
+        KVMessage response = null;
+        while (System.currentTimeMillis() < deadline) {
+            response = kvClient.put("warmup", "x");
+            if (response.getStatus() == StatusType.PUT_SUCCESS || response.getStatus() == StatusType.PUT_UPDATE) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        assertEquals(StatusType.PUT_SUCCESS, response.getStatus());
+        ring = MetadataRing.parse(kvClient.keyrange().getPayload());
+    }
+
+    private String keyOwnedBy(int server) {
+        for (int i = 0; ; i++) {
+            String key = "key" + i;
+            if (ring.serverFor(key).endsWith(":" + PORTS[server])) {
+                return key;
+            }
+        }
+    }
+
+    private void crash(int server) throws InterruptedException {
+        servers.get(server).destroyForcibly().waitFor();
+    }
+}
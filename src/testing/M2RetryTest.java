@@ -0,0 +1,142 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import client.RetryPolicy;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/* Requests rejected with SERVER_WRITE_LOCK, retried by the client on the sync, async and batched paths */
+public class M2RetryTest extends TestCase {
+
+    private static final int ECS_PORT = 38121; // the port KVServers announce themselves to
+    private static final int PORT = 50350;
+
+    private ECSClient ecsClient;
+    private KVServer server;
+    private KVStore kvClient;
+
+    @Override
+    public void setUp() throws Exception {
+        ecsClient = new ECSClient(ECS_PORT, 8, 60000, 8.0); // no pings while the test runs
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ecsClient.startListening();
+            }
+        }).start();
+        Thread.sleep(500);
+        server = new KVServer(PORT, 10, "FIFO", "Node_Retry");
+
+        kvClient = new KVStore("localhost", PORT);
+        long deadline = System.currentTimeMillis() + 10000;
+        KVMessage response = null;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                kvClient.connect();
+                response = kvClient.put("warmup", "x");
+                if (response.getStatus() == StatusType.PUT_SUCCESS || response.getStatus() == StatusType.PUT_UPDATE) {
+                    break;
+                }
+            } catch (Exception e) {
+                // not listening yet
+            }
+            Thread.sleep(100);
+        }
+        assertNotNull(response);
+        assertEquals(StatusType.PUT_SUCCESS, response.getStatus());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        kvClient.disconnect();
+        server.kill();
+        ecsClient.stopListening();
+        new File("kvstorage_localhost:" + PORT + ".txt").delete();
+    }
+
+    @Test
+    public void testPolicyRetriesOnlyWhatItIsAskedTo() {
+        RetryPolicy policy = new RetryPolicy(20, 1000, 5000);
+        assertTrue(policy.isRetryable(StatusType.SERVER_WRITE_LOCK));
+        assertFalse(policy.isRetryable(StatusType.SERVER_STOPPED));
+        assertFalse(policy.isRetryable(StatusType.PUT_ERROR));
+        assertTrue(new RetryPolicy(20, 1000, 5000, true).isRetryable(StatusType.SERVER_STOPPED));
+        assertFalse(RetryPolicy.NONE.isRetryable(StatusType.SERVER_WRITE_LOCK));
+    }
+
+    @Test
+    public void testPolicyBacksOffUpToTheCap() {
+        RetryPolicy policy = new RetryPolicy(20, 1000, 5000);
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long ceiling = Math.min(1000, 20L << Math.min(attempt, 20));
+            long delay = policy.delayFor(attempt, -1);
+            assertTrue(delay >= ceiling / 2 && delay <= ceiling);
+        }
+        // The server hint is the least wait, but no more than the cap
+        assertTrue(policy.delayFor(0, 300) >= 300);
+        assertEquals(1000, policy.delayFor(0, 60000));
+    }
+
+    @Test
+    public void testParkedWritesAreReleasedOnUnlock() throws Exception {
+        kvClient.setRetryPolicy(new RetryPolicy(20, 200, 10000));
+        server.setWriteLock(true);
+        List<CompletableFuture<KVMessage>> writes = new ArrayList<CompletableFuture<KVMessage>>();
+        for (int i = 0; i < 50; i++) {
+            writes.add(kvClient.putAsync("parked" + i, "v" + i));
+        }
+        Thread.sleep(400);
+        for (CompletableFuture<KVMessage> write : writes) {
+            assertFalse(write.isDone());
+        }
+
+        server.setWriteLock(false);
+        for (CompletableFuture<KVMessage> write : writes) {
+            assertEquals(StatusType.PUT_SUCCESS, write.get(5, TimeUnit.SECONDS).getStatus());
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals("v" + i, kvClient.get("parked" + i).getValue());
+        }
+    }
+
+    @Test
+    public void testParkedWriteGivesUpAtTheDeadline() throws Exception {
+        kvClient.setRetryPolicy(new RetryPolicy(20, 100, 500));
+        server.setWriteLock(true);
+        long start = System.currentTimeMillis();
+        KVMessage response = kvClient.putAsync("locked", "v").get(5, TimeUnit.SECONDS);
+        assertEquals(StatusType.SERVER_WRITE_LOCK, response.getStatus());
+        assertTrue(System.currentTimeMillis() - start >= 500);
+        server.setWriteLock(false);
+    }
+
+    @Test
+    public void testBatchedWritesWaitOutTheLock() throws Exception {
+        kvClient.setRetryPolicy(new RetryPolicy(20, 200, 10000));
+        kvClient.enableWriteBatching(1000, 16 * 1024);
+        server.setWriteLock(true);
+        List<CompletableFuture<KVMessage>> writes = new ArrayList<CompletableFuture<KVMessage>>();
+        for (int i = 0; i < 200; i++) {
+            writes.add(kvClient.putAsync("batched" + i, "v" + i));
+        }
+        kvClient.flushWrites();
+        Thread.sleep(300);
+        server.setWriteLock(false);
+        for (CompletableFuture<KVMessage> write : writes) {
+            assertEquals(StatusType.PUT_SUCCESS, write.get(5, TimeUnit.SECONDS).getStatus());
+        }
+        assertEquals("v199", kvClient.get("batched199").getValue());
+    }
+}
@@ -0,0 +1,96 @@
+package testing;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.SimpleKVCommunication;
+import shared.messages.SimpleKVMessage;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+
+public class M2StreamTest extends TestCase {
+
+    private Logger logger = Logger.getRootLogger();
+
+    @Test
+    public void testStreamedValueRoundTrip() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 3 * SimpleKVCommunication.CHUNK_SIZE + 17) {
+            sb.append("chunk data ");
+        }
+        String value = sb.toString();
+        assertTrue(SimpleKVCommunication.shouldStream(value));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SimpleKVCommunication.sendStreamed(StatusType.PUT_STREAM, "bigKey", value, output, logger, true);
+        ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+
+        SimpleKVMessage header = SimpleKVCommunication.parseMessage(
+            SimpleKVCommunication.receiveMessage(input, logger), logger);
+        assertEquals(StatusType.PUT_STREAM, header.getStatus());
+        assertEquals("bigKey", header.getKey());
+        assertEquals(value, SimpleKVCommunication.receiveStreamed(input, Integer.parseInt(header.getValue())));
+        assertEquals(0, input.available());
+    }
+
+    @Test
+    public void testUnstreamableValueIsRejectedBeforeWriting() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < SimpleKVCommunication.CHUNK_SIZE + 1) {
+            sb.append("caf\u00e9 ");
+        }
+        String value = sb.toString();
+        assertFalse(SimpleKVCommunication.isStreamable(value));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            SimpleKVCommunication.sendStreamed(StatusType.PUT_STREAM, "bigKey", value, output, logger, true);
+            fail("Expected the value to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } catch (IOException e) {
+            fail("Rejected too late: " + e.getMessage());
+        }
+        assertEquals(0, output.size());
+    }
+
+    @Test
+    public void testTruncatedStream() {
+        byte[] frame = new SimpleKVMessage(StatusType.GET_SUCCESS, "only", "part").getMsgBytes();
+        try {
+            SimpleKVCommunication.receiveStreamed(new ByteArrayInputStream(frame), 100);
+            fail("Expected the truncated stream to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAnnouncedLengthOutOfBoundsIsRefused() {
+        for (int length : new int[]{-1, SimpleKVCommunication.MAX_STREAM_LENGTH + 1, Integer.MAX_VALUE}) {
+            try {
+                SimpleKVCommunication.receiveStreamed(new ByteArrayInputStream(new byte[0]), length);
+                fail("Expected a stream of " + length + " chars to be refused");
+            } catch (IOException e) {
+                // expected, and nothing was allocated for it
+            }
+        }
+    }
+
+    @Test
+    public void testStreamLongerThanAnnounced() {
+        byte[] frame = new SimpleKVMessage(StatusType.GET_SUCCESS, "too", "long").getMsgBytes();
+        try {
+            SimpleKVCommunication.receiveStreamed(new ByteArrayInputStream(frame), 3);
+            fail("Expected the overlong stream to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}